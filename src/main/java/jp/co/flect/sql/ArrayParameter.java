@@ -0,0 +1,143 @@
+package jp.co.flect.sql;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * SQLの配列として1つのパラメータに設定する値<br>
+ * Connection.createArrayOfで配列を生成してsetArrayされます。<br>
+ * 「xxx = ANY(?)」のように配列のパラメータに対応しているデータベースで使用します。
+ * @see Dialect#supportsArrayParameter
+ */
+public final class ArrayParameter {
+	
+	private String typeName;
+	private Object[] values;
+	
+	/**
+	 * 配列の要素のデータ型を最初の要素のクラスから決定するコンストラクタ
+	 */
+	public ArrayParameter(Object... values) {
+		this(getTypeName(values), values);
+	}
+	
+	/**
+	 * 配列の要素のデータ型を最初の要素のクラスから決定するコンストラクタ
+	 */
+	public ArrayParameter(Collection<?> values) {
+		this(values.toArray());
+	}
+	
+	/**
+	 * @param typeName 配列の要素のデータベースでの型名(integer、varcharなど)
+	 */
+	public ArrayParameter(String typeName, Object[] values) {
+		this.typeName = typeName;
+		this.values = values;
+	}
+	
+	/**
+	 * 配列の要素のデータベースでの型名を返します。
+	 */
+	public String getTypeName() { return this.typeName;}
+	
+	/**
+	 * 配列の要素を返します。
+	 */
+	public Object[] getValues() { return this.values;}
+	
+	public int size() { return this.values.length;}
+	
+	public boolean equals(Object o) {
+		if (o instanceof ArrayParameter) {
+			ArrayParameter p = (ArrayParameter)o;
+			return p.typeName.equals(typeName) && Arrays.equals(p.values, values);
+		}
+		return false;
+	}
+	
+	public int hashCode() {
+		return typeName.hashCode() + Arrays.hashCode(values);
+	}
+	
+	public String toString() {
+		return Arrays.asList(this.values).toString();
+	}
+	
+	/**
+	 * java.sql.Typesの型に対応する配列の要素の型名を返します。<br>
+	 * 対応する型名がない場合はnullを返します。
+	 */
+	public static String getTypeName(int sqlType) {
+		switch (sqlType) {
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+				return "varchar";
+			case Types.INTEGER:
+				return "integer";
+			case Types.BIGINT:
+				return "bigint";
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return "smallint";
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				return "numeric";
+			case Types.DOUBLE:
+			case Types.FLOAT:
+				return "float8";
+			case Types.REAL:
+				return "float4";
+			case Types.BIT:
+			case Types.BOOLEAN:
+				return "boolean";
+			case Types.DATE:
+				return "date";
+			case Types.TIME:
+				return "time";
+			case Types.TIMESTAMP:
+				return "timestamp";
+		}
+		return null;
+	}
+	
+	private static String getTypeName(Object[] values) {
+		Object o = null;
+		for (Object v : values) {
+			if (v != null) {
+				o = v;
+				break;
+			}
+		}
+		if (o == null || o instanceof String || o instanceof Character) {
+			return "varchar";
+		} else if (o instanceof Integer) {
+			return "integer";
+		} else if (o instanceof Long) {
+			return "bigint";
+		} else if (o instanceof Short || o instanceof Byte) {
+			return "smallint";
+		} else if (o instanceof BigDecimal) {
+			return "numeric";
+		} else if (o instanceof Double) {
+			return "float8";
+		} else if (o instanceof Float) {
+			return "float4";
+		} else if (o instanceof Boolean) {
+			return "boolean";
+		} else if (o instanceof java.sql.Date) {
+			return "date";
+		} else if (o instanceof java.sql.Time) {
+			return "time";
+		} else if (o instanceof java.util.Date) {
+			return "timestamp";
+		} else if (o instanceof UUID) {
+			return "uuid";
+		}
+		throw new IllegalArgumentException("Unknown array type: " + o.getClass().getName());
+	}
+}
@@ -0,0 +1,301 @@
+package jp.co.flect.sql;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/**
+ * DBToolの処理を非同期で実行するクラス<br>
+ * 各処理はExecutorServiceのスレッドでConnectionPoolから取得したDBToolを使用して実行され、
+ * 終了後にConnectionは返却されます。<br>
+ * 独立した複数のクエリを並行して実行し、CompletableFutureで結果を待ち合わせることができます。<br>
+ * SelectBuilderはスレッドセーフではないので、複数のスレッドで同じクエリを使用する場合は
+ * CompiledQueryを使用してください。
+ */
+public class AsyncDBTool {
+	
+	/**
+	 * DBToolを使用して非同期で実行する処理
+	 */
+	public interface Task<T> {
+		public T execute(DBTool db) throws SQLException;
+	}
+	
+	private ConnectionPool pool;
+	private ExecutorService executor;
+	private boolean ownExecutor;
+	
+	/**
+	 * デフォルトのExecutorServiceで構築します。<br>
+	 * Virtual Threadが使用可能なJVMの場合はタスクごとにVirtual Threadを使用し、
+	 * それ以外の場合はデーモンスレッドのスレッドプールを使用します。
+	 */
+	public AsyncDBTool(ConnectionPool pool) {
+		this(pool, createDefaultExecutor(), true);
+	}
+	
+	/**
+	 * 指定のExecutorServiceで構築します。<br>
+	 * ExecutorServiceはshutdownで終了されません。
+	 */
+	public AsyncDBTool(ConnectionPool pool, ExecutorService executor) {
+		this(pool, executor, false);
+	}
+	
+	private AsyncDBTool(ConnectionPool pool, ExecutorService executor, boolean ownExecutor) {
+		this.pool = pool;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+	}
+	
+	private static ExecutorService createDefaultExecutor() {
+		try {
+			//Java21以降
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "AsyncDBTool");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+	
+	public ConnectionPool getConnectionPool() { return this.pool;}
+	public ExecutorService getExecutor() { return this.executor;}
+	
+	/**
+	 * 処理で使用するDBToolを返します。<br>
+	 * DBToolの設定を変更する場合はサブクラスでオーバーライドしてください。
+	 */
+	protected DBTool getDBTool() throws SQLException {
+		return this.pool.getDBTool();
+	}
+	
+	/**
+	 * 処理を非同期で実行します。<br>
+	 * SQLExceptionはFuture.getのExecutionExceptionの原因としてスローされます。
+	 * CompletableFutureの後続の処理(thenApplyなど)にはCompletionExceptionの原因として渡されます。
+	 */
+	public <T> CompletableFuture<T> submit(final Task<T> task) {
+		return CompletableFuture.supplyAsync(new Supplier<T>() {
+			public T get() {
+				try {
+					DBTool db = getDBTool();
+					try {
+						return task.execute(db);
+					} finally {
+						db.close();
+					}
+				} catch (SQLException e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, this.executor);
+	}
+	
+	public <T extends Table> CompletableFuture<T> select(final SelectBuilder builder, final T table, final Object... params) {
+		return submit(new Task<T>() {
+			public T execute(DBTool db) throws SQLException {
+				return db.select(builder, table, params);
+			}
+		});
+	}
+	
+	public <T extends Table> CompletableFuture<List<T>> selectList(final SelectBuilder builder, final T table, final Object... params) {
+		return submit(new Task<List<T>>() {
+			public List<T> execute(DBTool db) throws SQLException {
+				return db.selectList(builder, table, params);
+			}
+		});
+	}
+	
+	public <T extends Table> CompletableFuture<T> select(final CompiledQuery query, final T table, final Object... params) {
+		return submit(new Task<T>() {
+			public T execute(DBTool db) throws SQLException {
+				return db.select(query, table, params);
+			}
+		});
+	}
+	
+	public <T extends Table> CompletableFuture<List<T>> selectList(final CompiledQuery query, final T table, final Object... params) {
+		return submit(new Task<List<T>>() {
+			public List<T> execute(DBTool db) throws SQLException {
+				return db.selectList(query, table, params);
+			}
+		});
+	}
+	
+	public <T> CompletableFuture<T> create(final String sql, final DBTool.Creator<T> creator, final Object... params) {
+		return submit(new Task<T>() {
+			public T execute(DBTool db) throws SQLException {
+				return db.create(sql, creator, params);
+			}
+		});
+	}
+	
+	public CompletableFuture<Integer> executeUpdate(final String sql, final Object... params) {
+		return submit(new Task<Integer>() {
+			public Integer execute(DBTool db) throws SQLException {
+				return db.executeUpdate(sql, params);
+			}
+		});
+	}
+	
+	public CompletableFuture<Integer> insert(final Table t) {
+		return submit(new Task<Integer>() {
+			public Integer execute(DBTool db) throws SQLException {
+				return db.insert(t);
+			}
+		});
+	}
+	
+	public CompletableFuture<Void> insert(final List<? extends Table> list) {
+		return submit(new Task<Void>() {
+			public Void execute(DBTool db) throws SQLException {
+				db.insert(list);
+				return null;
+			}
+		});
+	}
+	
+	public CompletableFuture<Integer> update(final Table t) {
+		return submit(new Task<Integer>() {
+			public Integer execute(DBTool db) throws SQLException {
+				return db.update(t);
+			}
+		});
+	}
+	
+	public CompletableFuture<Integer> delete(final Table t) {
+		return submit(new Task<Integer>() {
+			public Integer execute(DBTool db) throws SQLException {
+				return db.delete(t);
+			}
+		});
+	}
+	
+	/**
+	 * 検索結果と件数を別々のConnectionで並行して取得します。<br>
+	 * 件数はSelectBuilder.toCountSQLで取得されるので、LIMIT、OFFSETを指定した検索でも全体の件数となります。
+	 */
+	public <T extends Table> Page<T> selectPage(final SelectBuilder builder, T table, Object... params) throws SQLException {
+		final CompiledQuery countQuery = builder.compileCount();
+		final Object[] countParams = countQuery.getParameters(DBTool.getCountParameters(builder, params));
+		CompiledQuery query = builder.compile();
+		Future<List<T>> list = selectList(query, table, params);
+		Future<Integer> count = submit(new Task<Integer>() {
+			public Integer execute(DBTool db) throws SQLException {
+				return db.getCount(countQuery.getSQL(), countParams);
+			}
+		});
+		return new Page<T>(get(list), get(count));
+	}
+	
+	/**
+	 * 主キーの値の一覧から行を検索し、主キーの値をキーとするMapを返します。<br>
+	 * 分割したキーごとに別々のConnectionで並行して検索します。
+	 * @see DBTool#selectByKeys
+	 */
+	public <T extends Table> Map<Object, T> selectByKeys(final T prototype, Collection<?> keys) throws SQLException {
+		final KeyLookup lookup;
+		DBTool tool = getDBTool();
+		try {
+			lookup = KeyLookup.get(prototype, tool.isArrayKeyLookup() ? tool.findDialect() : null, tool.getMaxParameters());
+		} finally {
+			tool.close();
+		}
+		Map<Object, Object> index = lookup.index(keys);
+		List<Future<List<T>>> list = new ArrayList<Future<List<T>>>();
+		Map<Object, T> ret = new LinkedHashMap<Object, T>();
+		long version = lookup.getCacheVersion();
+		for (final Object[] chunk : lookup.split(lookup.getCached(prototype, index, ret))) {
+			list.add(submit(new Task<List<T>>() {
+				public List<T> execute(DBTool db) throws SQLException {
+					return lookup.select(db, prototype, chunk);
+				}
+			}));
+		}
+		for (List<T> rows : AsyncDBTool.<List<T>>getAll(list)) {
+			lookup.put(index, ret, rows, version);
+		}
+		return ret;
+	}
+	
+	/**
+	 * 検索結果とLIMIT、OFFSETを除いた全体の件数
+	 */
+	public static class Page<T> {
+		
+		private List<T> list;
+		private int totalCount;
+		
+		public Page(List<T> list, int totalCount) {
+			this.list = list;
+			this.totalCount = totalCount;
+		}
+		
+		public List<T> getList() { return this.list;}
+		public int getTotalCount() { return this.totalCount;}
+	}
+	
+	/**
+	 * すべてのFutureの終了を待ち、結果を同じ順序で返します。<br>
+	 * いずれかの処理がSQLExceptionで終了した場合はそのSQLExceptionをスローします。
+	 */
+	public static <T> List<T> getAll(List<? extends Future<? extends T>> list) throws SQLException {
+		List<T> ret = new ArrayList<T>(list.size());
+		for (Future<? extends T> f : list) {
+			ret.add(get(f));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Futureの終了を待ち、結果を返します。<br>
+	 * 処理がSQLExceptionで終了した場合はそのSQLExceptionをスローします。
+	 */
+	public static <T> T get(Future<T> f) throws SQLException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) {
+				throw (SQLException)cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+	
+	/**
+	 * デフォルトのExecutorServiceを使用している場合は終了します。<br>
+	 * ConnectionPoolは終了しません。
+	 */
+	public void shutdown() {
+		if (this.ownExecutor) {
+			this.executor.shutdown();
+		}
+	}
+}
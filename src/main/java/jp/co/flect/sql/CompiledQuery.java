@@ -0,0 +1,238 @@
+package jp.co.flect.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * SelectBuilder.compile()で生成される不変のクエリ<br>
+ * SQL文字列、パラメータ数、SELECT句のフィールド名を保持します。<br>
+ * ResultSetの各列のデータ型は最初の実行時に解決され、以後は再利用されます。<br>
+ * SelectBuilderでリテラルをバインドした場合は、条件の値も保持します。<br>
+ * このクラスはスレッドセーフなので、static変数に保持して複数のスレッドから使用できます。
+ */
+public final class CompiledQuery {
+	
+	/** SQL中のリテラルの位置を示すマーカー。マーカーの間にリテラルのインデックスが入る */
+	static final char LITERAL_MARKER = '\u0000';
+	
+	private final String sql;
+	private final int parameterCount;
+	private final String[] fieldNames;
+	
+	/** バインドするリテラルの値 */
+	private final Object[] literals;
+	/** パラメータ(?)ごとのリテラルのインデックス。実行時のパラメータの場合は-1 */
+	private final int[] bindPlan;
+	/** 参照しているテーブル名 */
+	private final String[] tableNames;
+	/** FOR UPDATEを含む場合true */
+	private final boolean forUpdate;
+	
+	/** ResultSetのデータ型(最初の実行時に設定) */
+	private volatile int[] columnTypes = null;
+	
+	CompiledQuery(String sql, String[] fieldNames) {
+		this(sql, fieldNames, null);
+	}
+	
+	/**
+	 * @param sql リテラルの位置にマーカーを含むSQL
+	 * @param literals マーカーに対応するリテラルの値。リテラルがない場合はnull
+	 */
+	CompiledQuery(String sql, String[] fieldNames, Object[] literals) {
+		this(sql, fieldNames, literals, null);
+	}
+	
+	/**
+	 * @param tableNames 参照しているテーブル名。nullの場合は検索結果をQueryCacheに保持しません
+	 */
+	CompiledQuery(String sql, String[] fieldNames, Object[] literals, String[] tableNames) {
+		this(sql, fieldNames, literals, tableNames, false);
+	}
+	
+	/**
+	 * @param forUpdate FOR UPDATEを含む場合true。検索結果をQueryCacheに保持しません
+	 */
+	CompiledQuery(String sql, String[] fieldNames, Object[] literals, String[] tableNames, boolean forUpdate) {
+		this.fieldNames = fieldNames;
+		this.tableNames = tableNames;
+		this.forUpdate = forUpdate;
+		if (literals == null) {
+			this.sql = sql;
+			this.literals = null;
+			this.bindPlan = null;
+		} else {
+			List<Integer> plan = new ArrayList<Integer>();
+			this.sql = resolveLiterals(sql, plan);
+			this.literals = literals;
+			this.bindPlan = new int[plan.size()];
+			for (int i=0; i<this.bindPlan.length; i++) {
+				this.bindPlan[i] = plan.get(i).intValue();
+			}
+		}
+		this.parameterCount = countParameters(this.sql);
+	}
+	
+	/**
+	 * SQLを返します。
+	 */
+	public String getSQL() { return this.sql;}
+	
+	/**
+	 * SQLに含まれるパラメータ(?)の数を返します。<br>
+	 * バインドするリテラルの数も含みます。
+	 */
+	public int getParameterCount() { return this.parameterCount;}
+	
+	/**
+	 * バインドするリテラルの数を返します。
+	 */
+	public int getLiteralCount() { return this.literals == null ? 0 : this.literals.length;}
+	
+	/**
+	 * 実行時のパラメータとリテラルの値をSQLの「?」の順に並べたパラメータを返します。<br>
+	 * リテラルがない場合は引数をそのまま返します。
+	 */
+	public Object[] getParameters(Object... params) {
+		if (this.bindPlan == null) {
+			return params;
+		}
+		int cnt = this.bindPlan.length - this.literals.length;
+		if (params.length != cnt) {
+			throw new IllegalArgumentException("Invalid parameter count: expected=" + cnt + ", actual=" + params.length);
+		}
+		Object[] ret = new Object[this.bindPlan.length];
+		int idx = 0;
+		for (int i=0; i<ret.length; i++) {
+			int n = this.bindPlan[i];
+			ret[i] = n < 0 ? params[idx++] : this.literals[n];
+		}
+		return ret;
+	}
+	
+	/**
+	 * SELECT句の列数を返します。
+	 */
+	public int getColumnCount() { return this.fieldNames.length;}
+	
+	/**
+	 * SELECT句のフィールド名の一覧を返します。
+	 */
+	public List<String> getFieldNames() {
+		return Collections.unmodifiableList(Arrays.asList(this.fieldNames));
+	}
+	
+	/**
+	 * 指定の位置(0から開始)のSELECT句のフィールド名を返します。
+	 */
+	public String getFieldName(int idx) {
+		return this.fieldNames[idx];
+	}
+	
+	/**
+	 * FOR UPDATEで行をロックするクエリの場合にtrueを返します。
+	 */
+	public boolean isForUpdate() { return this.forUpdate;}
+	
+	/**
+	 * FROM句、JOIN句、副問合せで参照しているテーブル名の一覧を返します。<br>
+	 * 不明な場合は空のListを返します。
+	 */
+	public List<String> getTableNames() {
+		if (this.tableNames == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(Arrays.asList(this.tableNames));
+	}
+	
+	/**
+	 * ResultSetの各列のデータ型を返します。<br>
+	 * 最初の呼び出し時にResultSetMetaDataから解決されます。
+	 */
+	int[] getColumnTypes(ResultSet rs) throws SQLException {
+		int[] ret = this.columnTypes;
+		if (ret == null) {
+			ret = SelectBuilder.getColumnTypes(rs, this.fieldNames.length);
+			this.columnTypes = ret;
+		}
+		return ret;
+	}
+	
+	/**
+	 * ResultSetの現在の行の内容をMapにコピーします。
+	 */
+	public Map<String, Object> map(ResultSet rs) throws SQLException {
+		int[] types = getColumnTypes(rs);
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (int i=0; i<this.fieldNames.length; i++) {
+			map.put(this.fieldNames[i], SelectBuilder.getValue(rs, i+1, types[i]));
+		}
+		return map;
+	}
+	
+	@Override
+	public String toString() {
+		return this.sql;
+	}
+	
+	/**
+	 * SQLに含まれるパラメータ(?)の数を返します。<br>
+	 * 文字列リテラルおよびクォートされた識別子の中の?は数えません。
+	 */
+	static int countParameters(String sql) {
+		int ret = 0;
+		char quote = 0;
+		for (int i=0; i<sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '?') {
+				ret++;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * SQL中のリテラルのマーカーを「?」に置き換えます。<br>
+	 * planがnullでない場合は「?」ごとにリテラルのインデックス(実行時のパラメータの場合は-1)を追加します。
+	 */
+	static String resolveLiterals(String sql, List<Integer> plan) {
+		StringBuilder buf = new StringBuilder(sql.length());
+		char quote = 0;
+		for (int i=0; i<sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '?') {
+				if (plan != null) {
+					plan.add(-1);
+				}
+			} else if (c == LITERAL_MARKER) {
+				int end = sql.indexOf(LITERAL_MARKER, i + 1);
+				if (plan != null) {
+					plan.add(Integer.parseInt(sql.substring(i + 1, end)));
+				}
+				buf.append('?');
+				i = end;
+				continue;
+			}
+			buf.append(c);
+		}
+		return buf.toString();
+	}
+}
@@ -193,7 +193,7 @@ public abstract class Condition {
 			if (value == null) {
 				buf.append("?");
 			} else {
-				SelectBuilder.appendObject(buf, builder, value);
+				SelectBuilder.appendValue(buf, builder, value);
 			}
 		}
 		
@@ -378,7 +378,17 @@ public abstract class Condition {
 	 */
 	public static class In extends CompareParam {
 		
+		/** 1つのIN句に含める値の最大数の既定値 */
+		public static final int DEFAULT_MAX_SIZE = 1000;
+		
+		/** IN句全体のパラメータの最大数の既定値(DBTool.getMaxParametersの既定値と同じ) */
+		public static final int DEFAULT_MAX_PARAMETERS = 32767;
+		
 		private int cnt;
+		private boolean bucket = false;
+		private boolean array = false;
+		private int maxSize = DEFAULT_MAX_SIZE;
+		private int maxParameters = DEFAULT_MAX_PARAMETERS;
 		
 		/**
 		 * In(field, 1)と同じです
@@ -428,6 +438,83 @@ public abstract class Condition {
 			return this;
 		}
 		
+		/**
+		 * パラメータの数を2のべき乗に切り上げます<br>
+		 * 不足分は最後の値を繰り返して補うので、値の数が変わってもSQLの種類は限られます。
+		 * パラメータ(?)を使用する場合はpad()で補った値を渡してください。<br>
+		 * values()で指定した値は、SelectBuilderでリテラルをバインドする場合のみ補われます。
+		 * その場合、切り上げたパラメータ数はmaxParametersを超えません。
+		 */
+		public In bucket() {
+			this.bucket = true;
+			return this;
+		}
+		
+		/**
+		 * IN句の代わりに配列の1つのパラメータを使用して「xxx = ANY(?)」とします<br>
+		 * パラメータ(?)を使用する場合はArrayParameterを渡してください。<br>
+		 * values()で指定した値は、SelectBuilderでリテラルをバインドする場合のみ配列になります。
+		 * @see Dialect#supportsArrayParameter
+		 */
+		public In array() {
+			this.array = true;
+			return this;
+		}
+		
+		/**
+		 * 1つのIN句に含める値の最大数を設定します<br>
+		 * 値の数が超える場合は「(xxx IN (...) OR xxx IN (...))」に分割します。
+		 * 分割しても1つのSQLとなるので、パラメータの総数はmaxParametersまでに制限されます。
+		 */
+		public In maxSize(int n) {
+			if (n <= 0) {
+				throw new IllegalArgumentException("maxSize: " + n);
+			}
+			this.maxSize = n;
+			return this;
+		}
+		
+		/**
+		 * IN句全体で使用できるパラメータの最大数を設定します(デフォルト32767)<br>
+		 * パラメータの数が超える場合はSQLの生成時にIllegalArgumentExceptionをスローします。
+		 * 大量のキーで検索する場合はDBTool.selectByKeysを使用してください。
+		 * selectByKeysはDBTool.getMaxParametersごとに分割して実行します。
+		 * @see DBTool#getMaxParameters
+		 */
+		public In maxParameters(int n) {
+			if (n <= 0) {
+				throw new IllegalArgumentException("maxParameters: " + n);
+			}
+			this.maxParameters = n;
+			return this;
+		}
+		
+		/**
+		 * bucket()を指定した場合のパラメータ数を返します。
+		 */
+		public static int getBucketSize(int n) {
+			int ret = 1;
+			while (ret < n) {
+				ret <<= 1;
+			}
+			return n == 0 ? 0 : ret;
+		}
+		
+		/**
+		 * 値の数を2のべき乗に切り上げ、最後の値を繰り返して補った配列を返します。<br>
+		 * bucket()を指定したIn(field, cnt)のパラメータに使用します。
+		 */
+		public static Object[] pad(Object... values) {
+			int n = getBucketSize(values.length);
+			if (n == values.length) {
+				return values;
+			}
+			Object[] ret = new Object[n];
+			System.arraycopy(values, 0, ret, 0, values.length);
+			Arrays.fill(ret, values.length, n, values[values.length - 1]);
+			return ret;
+		}
+		
 		@Override
 		public void build(StringBuilder buf, SelectBuilder builder) {
 			List values = null;
@@ -438,27 +525,60 @@ public abstract class Condition {
 					values = Arrays.asList(value);
 				}
 			}
-			this.col.build(buf, builder);
-			buf.append(" ").append(this.op).append(" (");
-			if (values == null) {
-				for (int i=0; i<this.cnt; i++) {
-					if (i != 0) {
-						buf.append(", ");
-					}
+			boolean bind = values == null || SelectBuilder.isBindingLiterals();
+			int n = values == null ? this.cnt : values.size();
+			if (bind && this.array) {
+				this.col.build(buf, builder);
+				buf.append(" = ANY(");
+				if (values == null) {
 					buf.append("?");
+				} else {
+					SelectBuilder.appendValue(buf, builder, new ArrayParameter(values.toArray()));
 				}
-			} else {
-				boolean first = true;
-				for (Object o : values) {
-					if (first) {
-						first = false;
+				buf.append(")");
+				return;
+			}
+			if (bind && n > this.maxParameters) {
+				throw new IllegalArgumentException("Too many parameters for IN: " + n + " > " + this.maxParameters + 
+					". Use DBTool.selectByKeys or In.array() instead.");
+			}
+			if (bind && this.bucket) {
+				int size = getBucketSize(n);
+				if (size > this.maxParameters) {
+					if (values == null) {
+						//pad()で補った値の数と合わなくなるので切り詰めない
+						throw new IllegalArgumentException("Too many parameters for IN: " + size + " > " + this.maxParameters);
+					}
+					size = this.maxParameters;
+				}
+				n = size;
+			}
+			boolean split = n > this.maxSize;
+			if (split) {
+				buf.append("(");
+			}
+			this.col.build(buf, builder);
+			buf.append(" ").append(this.op).append(" (");
+			for (int i=0; i<n; i++) {
+				if (i != 0) {
+					if (i % this.maxSize == 0) {
+						buf.append(") OR ");
+						this.col.build(buf, builder);
+						buf.append(" ").append(this.op).append(" (");
 					} else {
 						buf.append(", ");
 					}
-					SelectBuilder.appendObject(buf, builder, o);
+				}
+				if (values == null) {
+					buf.append("?");
+				} else {
+					SelectBuilder.appendValue(buf, builder, values.get(Math.min(i, values.size() - 1)));
 				}
 			}
 			buf.append(")");
+			if (split) {
+				buf.append(")");
+			}
 		}
 	}
 	
@@ -566,6 +686,8 @@ public abstract class Condition {
 			return this;
 		}
 		
+		SelectBuilder getBuilder() { return this.builder;}
+		
 		@Override
 		public void build(StringBuilder buf, SelectBuilder parent) {
 			this.builder.setParent(parent);
@@ -601,4 +723,98 @@ public abstract class Condition {
 		}
 	}
 	
+	/**
+	 * キーセットページングの継続条件<br>
+	 * すべての列の並び順が同じ場合は (k1, k2) &gt; (?, ?) 、
+	 * 異なる場合は (k1 &gt; ? OR (k1 = ? AND k2 &lt; ?)) の形式となります。<br>
+	 * 降順の列は &lt; で比較されます。
+	 */
+	public static class Keyset extends Condition {
+		
+		private Select[] cols;
+		private boolean[] asc;
+		private boolean rowValue;
+		
+		public Keyset(Select[] cols, boolean[] asc) {
+			if (cols.length == 0 || cols.length != asc.length) {
+				throw new IllegalArgumentException();
+			}
+			this.cols = cols;
+			this.asc = asc;
+			this.rowValue = true;
+			for (int i=1; i<asc.length; i++) {
+				if (asc[i] != asc[0]) {
+					this.rowValue = false;
+				}
+			}
+		}
+		
+		/**
+		 * 条件に含まれるパラメータ(?)の数を返します。
+		 */
+		public int getParameterCount() {
+			int n = this.cols.length;
+			return this.rowValue ? n : n * (n + 1) / 2;
+		}
+		
+		/**
+		 * 前のページの最後の行のキーの値から条件のパラメータを返します。
+		 */
+		public Object[] getParameters(Object[] key) {
+			if (key.length != this.cols.length) {
+				throw new IllegalArgumentException();
+			}
+			if (this.rowValue) {
+				return key;
+			}
+			Object[] ret = new Object[getParameterCount()];
+			int idx = 0;
+			for (int i=0; i<key.length; i++) {
+				for (int j=0; j<=i; j++) {
+					ret[idx++] = key[j];
+				}
+			}
+			return ret;
+		}
+		
+		public void build(StringBuilder buf, SelectBuilder builder) {
+			if (this.rowValue) {
+				String op = this.asc[0] ? " > " : " < ";
+				if (this.cols.length == 1) {
+					this.cols[0].doBuild(buf, builder);
+					buf.append(op).append("?");
+					return;
+				}
+				buf.append("(");
+				for (int i=0; i<this.cols.length; i++) {
+					if (i > 0) {
+						buf.append(", ");
+					}
+					this.cols[i].doBuild(buf, builder);
+				}
+				buf.append(")").append(op).append("(");
+				for (int i=0; i<this.cols.length; i++) {
+					buf.append(i == 0 ? "?" : ", ?");
+				}
+				buf.append(")");
+				return;
+			}
+			buf.append("(");
+			for (int i=0; i<this.cols.length; i++) {
+				if (i > 0) {
+					buf.append(" OR ");
+				}
+				buf.append("(");
+				for (int j=0; j<i; j++) {
+					this.cols[j].doBuild(buf, builder);
+					buf.append(" = ? AND ");
+				}
+				this.cols[i].doBuild(buf, builder);
+				buf.append(this.asc[i] ? " > ?" : " < ?");
+				buf.append(")");
+			}
+			buf.append(")");
+		}
+	}
+	
 }
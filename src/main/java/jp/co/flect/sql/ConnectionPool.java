@@ -0,0 +1,581 @@
+package jp.co.flect.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 軽量なConnectionプール<br>
+ * 同時に貸し出すConnectionの数はmaxSizeまでに制限されます。<br>
+ * 貸し出したConnectionのcloseを呼び出すとプールに返却されます。<br>
+ * 一定時間使用されていないConnectionの破棄と、
+ * 返却されないConnectionの検出はバックグラウンドのスレッドで行われます。
+ */
+public class ConnectionPool {
+	
+	/** バックグラウンドの処理を実行する間隔(ミリ秒) */
+	private static final long MAINTENANCE_INTERVAL = 5000;
+	
+	/**
+	 * 物理Connectionを生成するインターフェース
+	 */
+	public interface ConnectionFactory {
+		public Connection create() throws SQLException;
+	}
+	
+	/**
+	 * 返却されないConnectionの検出を受け取るインターフェース<br>
+	 * メンテナンス用のスレッドから呼び出されます。
+	 */
+	public interface LeakListener {
+		/**
+		 * @param e 取得時のスタックトレースを持つ例外
+		 * @param elapsed 取得からの経過時間(ミリ秒)
+		 */
+		public void leakDetected(IllegalStateException e, long elapsed);
+	}
+	
+	private ConnectionFactory factory;
+	private int maxSize;
+	private Semaphore permits;
+	private ConcurrentLinkedQueue<Entry> idle = new ConcurrentLinkedQueue<Entry>();
+	private ConcurrentHashMap<Entry, Boolean> borrowed = new ConcurrentHashMap<Entry, Boolean>();
+	private ScheduledExecutorService scheduler;
+	private volatile boolean closed = false;
+	
+	private volatile long borrowTimeout = 30000;
+	private volatile boolean validateOnBorrow = true;
+	private volatile int validationTimeout = 5;
+	private volatile long maxIdleTime = 10 * 60 * 1000;
+	private volatile long leakThreshold = 0;
+	private volatile LeakListener leakListener = null;
+	private AtomicLong leakCount = new AtomicLong();
+	private volatile int statementCacheSize = 0;
+	private volatile QueryCache queryCache = null;
+	private volatile StatementMetrics metrics = null;
+	/** SQLごとのnullパラメータのデータ型。すべてのConnectionで共有 */
+	private Map<String, int[]> nullTypeCache = DBTool.createNullTypeCache();
+	
+	public ConnectionPool(final String url, final Properties info, int maxSize) {
+		this(new ConnectionFactory() {
+			public Connection create() throws SQLException {
+				return DriverManager.getConnection(url, info);
+			}
+		}, maxSize);
+	}
+	
+	public ConnectionPool(ConnectionFactory factory, int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize: " + maxSize);
+		}
+		this.factory = factory;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ConnectionPool-maintenance");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+				detectLeaks();
+			}
+		}, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * 同時に貸し出すConnectionの最大数を返します。
+	 */
+	public int getMaxSize() { return this.maxSize;}
+	
+	/**
+	 * 貸し出し中のConnectionの数を返します。
+	 */
+	public int getActiveCount() { return this.borrowed.size();}
+	
+	/**
+	 * プールされている未使用のConnectionの数を返します。
+	 */
+	public int getIdleCount() { return this.idle.size();}
+	
+	/**
+	 * Connectionの取得を待つ最大時間(ミリ秒)を返します。
+	 */
+	public long getBorrowTimeout() { return this.borrowTimeout;}
+	
+	/**
+	 * Connectionの取得を待つ最大時間(ミリ秒)を設定します。(デフォルト30秒)
+	 */
+	public void setBorrowTimeout(long n) { this.borrowTimeout = n;}
+	
+	/**
+	 * 貸し出し時にConnection.isValidで検証するかどうかを返します。
+	 */
+	public boolean isValidateOnBorrow() { return this.validateOnBorrow;}
+	
+	/**
+	 * 貸し出し時にConnection.isValidで検証するかどうかを設定します。(デフォルトtrue)
+	 */
+	public void setValidateOnBorrow(boolean b) { this.validateOnBorrow = b;}
+	
+	/**
+	 * 検証のタイムアウト(秒)を返します。
+	 */
+	public int getValidationTimeout() { return this.validationTimeout;}
+	
+	/**
+	 * 検証のタイムアウト(秒)を設定します。(デフォルト5秒)
+	 */
+	public void setValidationTimeout(int n) { this.validationTimeout = n;}
+	
+	/**
+	 * 未使用のConnectionを破棄するまでの時間(ミリ秒)を返します。
+	 */
+	public long getMaxIdleTime() { return this.maxIdleTime;}
+	
+	/**
+	 * 未使用のConnectionを破棄するまでの時間(ミリ秒)を設定します。(デフォルト10分)<br>
+	 * 0以下の場合は破棄しません。
+	 */
+	public void setMaxIdleTime(long n) { this.maxIdleTime = n;}
+	
+	/**
+	 * 返却されないConnectionを検出するまでの時間(ミリ秒)を返します。
+	 */
+	public long getLeakThreshold() { return this.leakThreshold;}
+	
+	/**
+	 * 返却されないConnectionを検出するまでの時間(ミリ秒)を設定します。<br>
+	 * 検出した場合はLeakListenerに取得時のスタックトレースが通知されます。<br>
+	 * 0以下の場合は検出しません。(デフォルト)
+	 */
+	public void setLeakThreshold(long n) { this.leakThreshold = n;}
+	
+	public LeakListener getLeakListener() { return this.leakListener;}
+	
+	/**
+	 * 返却されないConnectionを検出した時に通知するLeakListenerを設定します。
+	 */
+	public void setLeakListener(LeakListener l) { this.leakListener = l;}
+	
+	/**
+	 * 検出した返却されないConnectionの累計数を返します。<br>
+	 * 1回の貸し出しについて1回だけ数えます。
+	 */
+	public long getLeakCount() { return this.leakCount.get();}
+	
+	/**
+	 * getDBToolで生成するDBToolのPreparedStatementのキャッシュ件数を返します。
+	 */
+	public int getStatementCacheSize() { return this.statementCacheSize;}
+	
+	/**
+	 * getDBToolで生成するDBToolのPreparedStatementのキャッシュ件数を設定します。<br>
+	 * キャッシュは物理Connectionごとに保持され、返却後も再利用されます。<br>
+	 * 0以下の場合はキャッシュしません。(デフォルト)
+	 */
+	public void setStatementCacheSize(int n) { this.statementCacheSize = n;}
+	
+	public QueryCache getQueryCache() { return this.queryCache;}
+	
+	/**
+	 * getDBToolで生成するDBToolに設定するQueryCacheを設定します。<br>
+	 * すべてのDBToolで共有されるので、いずれかのDBToolでの変更で無効化されます。
+	 */
+	public void setQueryCache(QueryCache cache) { this.queryCache = cache;}
+	
+	public StatementMetrics getStatementMetrics() { return this.metrics;}
+	
+	/**
+	 * getDBToolで生成するDBToolに設定するStatementMetricsを設定します。
+	 */
+	public void setStatementMetrics(StatementMetrics m) { this.metrics = m;}
+	
+	/**
+	 * Connectionを取得します。<br>
+	 * 使用後はcloseを呼び出してプールに返却してください。
+	 */
+	public Connection getConnection() throws SQLException {
+		return borrow().proxy;
+	}
+	
+	/**
+	 * プールから取得したConnectionを使用するDBToolを返します。<br>
+	 * DBToolのcloseを呼び出すとConnectionはプールに返却されます。
+	 */
+	public DBTool getDBTool() throws SQLException {
+		Entry entry = borrow();
+		DBTool db = new DBTool(entry.proxy, entry.getStatementCache(this.statementCacheSize), this.nullTypeCache);
+		db.setQueryCache(this.queryCache);
+		db.setStatementMetrics(this.metrics);
+		return db;
+	}
+	
+	private Entry borrow() throws SQLException {
+		if (this.closed) {
+			throw new SQLException("ConnectionPool is closed");
+		}
+		try {
+			if (!this.permits.tryAcquire(this.borrowTimeout, TimeUnit.MILLISECONDS)) {
+				throw new SQLException("Timeout: " + this.borrowTimeout + "ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted");
+		}
+		boolean success = false;
+		try {
+			Entry entry = null;
+			while ((entry = this.idle.poll()) != null) {
+				if (!this.validateOnBorrow || entry.isValid(this.validationTimeout)) {
+					break;
+				}
+				entry.discard();
+			}
+			if (entry == null) {
+				entry = new Entry(this.factory.create());
+			}
+			entry.borrow(this.leakThreshold > 0);
+			this.borrowed.put(entry, Boolean.TRUE);
+			success = true;
+			return entry;
+		} finally {
+			if (!success) {
+				this.permits.release();
+			}
+		}
+	}
+	
+	private void release(Entry entry) {
+		this.borrowed.remove(entry);
+		boolean reuse = !this.closed;
+		if (reuse) {
+			try {
+				Connection con = entry.con;
+				if (con.isClosed()) {
+					reuse = false;
+				} else {
+					if (!con.getAutoCommit()) {
+						con.rollback();
+						con.setAutoCommit(true);
+					}
+					entry.restoreState();
+				}
+			} catch (SQLException e) {
+				reuse = false;
+			}
+		}
+		if (reuse) {
+			entry.lastUsed = System.currentTimeMillis();
+			this.idle.offer(entry);
+		} else {
+			entry.discard();
+		}
+		this.permits.release();
+	}
+	
+	private void evictIdle() {
+		long n = this.maxIdleTime;
+		if (n <= 0) {
+			return;
+		}
+		long limit = System.currentTimeMillis() - n;
+		for (Entry entry : this.idle) {
+			if (entry.lastUsed < limit && this.idle.remove(entry)) {
+				entry.discard();
+			}
+		}
+	}
+	
+	private void detectLeaks() {
+		long n = this.leakThreshold;
+		if (n <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Entry entry : this.borrowed.keySet()) {
+			Throwable stack = entry.borrowStack;
+			if (stack != null && !entry.leakReported && now - entry.borrowTime > n) {
+				entry.leakReported = true;
+				this.leakCount.incrementAndGet();
+				LeakListener l = this.leakListener;
+				if (l != null) {
+					long elapsed = now - entry.borrowTime;
+					IllegalStateException e = new IllegalStateException("Connection leak: borrowed " + elapsed + "ms ago");
+					e.setStackTrace(stack.getStackTrace());
+					try {
+						l.leakDetected(e, elapsed);
+					} catch (RuntimeException ex) {
+						//例外でメンテナンス処理が停止しないようにする
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * プールを終了します。<br>
+	 * 未使用のConnectionはcloseされ、貸し出し中のConnectionは返却時にcloseされます。
+	 */
+	public void close() {
+		this.closed = true;
+		this.scheduler.shutdownNow();
+		Entry entry = null;
+		while ((entry = this.idle.poll()) != null) {
+			entry.discard();
+		}
+	}
+	
+	public boolean isClosed() { return this.closed;}
+	
+	/**
+	 * プールされる物理Connection
+	 */
+	private class Entry {
+		
+		private Connection con;
+		/** Statement等のgetConnectionがproxyを返すようにラップした物理Connection */
+		private Connection wrapped;
+		private StatementCache statementCache;
+		private volatile Connection proxy;
+		private volatile long lastUsed;
+		private volatile long borrowTime;
+		private volatile Throwable borrowStack;
+		private volatile boolean leakReported;
+		/** 貸し出し中に変更された設定のsetterと変更前の値 */
+		private Map<Method, Object> savedState = null;
+		
+		public Entry(Connection con) {
+			this.con = con;
+			this.wrapped = (Connection)wrap(this, Connection.class, con, null, null);
+			this.lastUsed = System.currentTimeMillis();
+		}
+		
+		public void borrow(boolean trace) {
+			this.borrowTime = System.currentTimeMillis();
+			this.borrowStack = trace ? new Throwable() : null;
+			this.leakReported = false;
+			this.proxy = (Connection)Proxy.newProxyInstance(
+				Connection.class.getClassLoader(), 
+				new Class<?>[] { Connection.class }, 
+				new Handler(this));
+		}
+		
+		public synchronized StatementCache getStatementCache(int size) {
+			if (size <= 0) {
+				return null;
+			}
+			if (this.statementCache == null || this.statementCache.getMaxSize() != size) {
+				if (this.statementCache != null) {
+					this.statementCache.close();
+				}
+				//キャッシュは貸し出しをまたいで使用されるので、貸し出しごとのproxyではなくwrappedで生成する
+				this.statementCache = new StatementCache(this.wrapped, size);
+			}
+			return this.statementCache;
+		}
+		
+		/**
+		 * setterを呼び出す前に現在の値を記録します。<br>
+		 * 同じ貸し出し中の2回目以降の呼び出しでは記録しません。
+		 */
+		public void saveState(Method setter) throws SQLException {
+			if (this.savedState == null) {
+				this.savedState = new HashMap<Method, Object>();
+			}
+			if (!this.savedState.containsKey(setter)) {
+				String name = setter.getName().substring(3);
+				String getter = name.equals("ReadOnly") ? "isReadOnly" : "get" + name;
+				this.savedState.put(setter, invoke(getter, new Class<?>[0]));
+			}
+		}
+		
+		/**
+		 * 貸し出し中に変更された設定を元に戻します。
+		 */
+		public void restoreState() throws SQLException {
+			if (this.savedState == null) {
+				return;
+			}
+			Map<Method, Object> map = this.savedState;
+			this.savedState = null;
+			for (Map.Entry<Method, Object> entry : map.entrySet()) {
+				Method setter = entry.getKey();
+				invoke(setter.getName(), setter.getParameterTypes(), entry.getValue());
+			}
+		}
+		
+		//JDBCのバージョンによって存在しないメソッド(getSchemaなど)があるのでリフレクションで呼び出す
+		private Object invoke(String name, Class<?>[] types, Object... args) throws SQLException {
+			try {
+				return Connection.class.getMethod(name, types).invoke(this.con, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getTargetException();
+				if (cause instanceof SQLException) {
+					throw (SQLException)cause;
+				}
+				throw new SQLException(cause.toString());
+			} catch (Exception e) {
+				throw new SQLException(e.toString());
+			}
+		}
+		
+		public boolean isValid(int timeout) {
+			try {
+				return this.con.isValid(timeout);
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+		
+		public void discard() {
+			if (this.statementCache != null) {
+				this.statementCache.close();
+			}
+			try {
+				this.con.close();
+			} catch (SQLException e) {
+				//ignore
+			}
+		}
+	}
+	
+	/**
+	 * 貸し出したConnectionのラッパー<br>
+	 * closeでプールに返却し、返却後の呼び出しはSQLExceptionとなります。<br>
+	 * ReadOnly、TransactionIsolation、Catalog、Schemaをsetterで変更した場合は返却時に元に戻されます。
+	 * SQLで直接変更した設定は戻されません。<br>
+	 * 生成したStatementのgetConnectionなどもこのラッパーを返します。
+	 */
+	private class Handler implements InvocationHandler {
+		
+		private Entry entry;
+		private AtomicBoolean returned = new AtomicBoolean(false);
+		
+		public Handler(Entry entry) {
+			this.entry = entry;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (this.returned.compareAndSet(false, true)) {
+					release(this.entry);
+				}
+				return null;
+			} else if (name.equals("isClosed")) {
+				return this.returned.get() || this.entry.con.isClosed();
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "Pooled:" + this.entry.con;
+			}
+			if (this.returned.get()) {
+				throw new SQLException("Connection is closed");
+			}
+			if (name.equals("setReadOnly") || name.equals("setTransactionIsolation") ||
+			    name.equals("setCatalog") || name.equals("setSchema")) {
+				this.entry.saveState(method);
+			}
+			try {
+				return method.invoke(this.entry.wrapped, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+	
+	//ラップするJDBCのインターフェース
+	private static final Class<?>[] WRAPPED_TYPES = {
+		CallableStatement.class,
+		PreparedStatement.class,
+		Statement.class,
+		ResultSet.class,
+		DatabaseMetaData.class
+	};
+	
+	private Object wrap(Entry entry, Class<?> type, Object target, Object parent, Object parentTarget) {
+		return Proxy.newProxyInstance(
+			Connection.class.getClassLoader(), 
+			new Class<?>[] { type }, 
+			new JdbcHandler(entry, target, parent, parentTarget));
+	}
+	
+	/**
+	 * 物理Connectionとそこから取得したStatement、ResultSet、DatabaseMetaDataのラッパー<br>
+	 * getConnectionなどConnectionを返すメソッドは貸し出し中のConnectionのラッパーを返し、
+	 * 物理Connectionが利用者に渡らないようにします。
+	 */
+	private class JdbcHandler implements InvocationHandler {
+		
+		private Entry entry;
+		private Object target;
+		//このオブジェクトを返したラッパーとそのラップ対象(ResultSet.getStatementなどで使用)
+		private Object parent;
+		private Object parentTarget;
+		
+		public JdbcHandler(Entry entry, Object target, Object parent, Object parentTarget) {
+			this.entry = entry;
+			this.target = target;
+			this.parent = parent;
+			this.parentTarget = parentTarget;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals") && args != null && args.length == 1) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode") && args == null) {
+				return System.identityHashCode(proxy);
+			}
+			Object ret = null;
+			try {
+				ret = method.invoke(this.target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+			if (ret == null) {
+				return null;
+			}
+			Class<?> type = method.getReturnType();
+			if (type == Connection.class) {
+				return this.entry.proxy;
+			}
+			if (ret == this.parentTarget) {
+				return this.parent;
+			}
+			for (Class<?> c : WRAPPED_TYPES) {
+				if (type == c) {
+					return wrap(this.entry, type, ret, proxy, this.target);
+				}
+			}
+			return ret;
+		}
+	}
+}
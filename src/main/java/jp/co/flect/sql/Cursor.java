@@ -0,0 +1,107 @@
+package jp.co.flect.sql;
+
+import java.io.Closeable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 検索結果を1行ずつ読み込むカーソル<br>
+ * DBTool.openCursorで生成します。<br>
+ * 行は読み込まれた時点でTableに変換され、カーソルは保持しません。<br>
+ * 使用後は必ずcloseしてください。<br>
+ * SQLExceptionはIllegalStateExceptionにラップされてスローされます。
+ */
+public class Cursor<T extends Table> implements Iterator<T>, Closeable {
+	
+	private DBTool tool;
+	private String sql;
+	private PreparedStatement stmt;
+	private ResultSet rs;
+	private RowMapper<T> mapper;
+	private boolean restoreAutoCommit;
+	
+	private T nextRow = null;
+	private boolean closed = false;
+	
+	//StatementMetricsが設定されている場合の読み込み時間と行数
+	private StatementMetrics metrics;
+	private long fetchNanos = 0;
+	private int rows = 0;
+	
+	Cursor(DBTool tool, String sql, PreparedStatement stmt, ResultSet rs, RowMapper<T> mapper, boolean restoreAutoCommit) {
+		this.tool = tool;
+		this.sql = sql;
+		this.metrics = tool.getStatementMetrics();
+		this.stmt = stmt;
+		this.rs = rs;
+		this.mapper = mapper;
+		this.restoreAutoCommit = restoreAutoCommit;
+	}
+	
+	public boolean hasNext() {
+		if (this.nextRow != null) {
+			return true;
+		}
+		if (this.closed) {
+			return false;
+		}
+		long start = this.metrics == null ? 0 : System.nanoTime();
+		try {
+			if (this.rs.next()) {
+				this.nextRow = this.mapper.map(this.rs);
+				if (this.metrics != null) {
+					this.fetchNanos += System.nanoTime() - start;
+					this.rows++;
+				}
+				return true;
+			}
+		} catch (SQLException e) {
+			close();
+			throw new IllegalStateException(e);
+		}
+		close();
+		return false;
+	}
+	
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		T ret = this.nextRow;
+		this.nextRow = null;
+		return ret;
+	}
+	
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * カーソルをcloseします。<br>
+	 * 最後の行まで読み込んだ場合は自動的にcloseされます。
+	 */
+	public void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		this.nextRow = null;
+		if (this.metrics != null) {
+			this.metrics.fetched(this.sql, this.fetchNanos, this.rows);
+		}
+		try {
+			try {
+				this.rs.close();
+			} finally {
+				this.tool.closeStreamingStatement(this.stmt, this.restoreAutoCommit);
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public boolean isClosed() { return this.closed;}
+}
@@ -8,27 +8,267 @@ import java.sql.SQLException;
 import java.sql.ParameterMetaData;
 import java.sql.Timestamp;
 import java.sql.Types;
-import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.lang.reflect.Array;
+import java.util.Map;
+import java.util.Set;
 
 import jp.co.flect.sql.Table.Field;
+import jp.co.flect.sql.TableSchema.StatementPlan;
 
 /**
  * 汎用のDatabaseユーティリティ
  */
 public class DBTool {
 	
+	/** nullパラメータのデータ型をキャッシュするSQLの最大数 */
+	private static final int MAX_NULL_TYPES = 256;
+	
 	protected Connection con;
+	private StatementCache statementCache;
+	private int fetchSize = 1000;
+	private int multiRowInsertSize = 0;
+	private boolean arrayKeyLookup = false;
+	private int maxParameters = 32767;
+	private int batchSize = 0;
+	private int commitInterval = 0;
+	private ProgressListener progressListener;
+	private boolean updateModifiedOnly = false;
+	private Dialect dialect = null;
+	private QueryCache queryCache = null;
+	private StatementMetrics metrics = null;
+	/** トランザクション中に変更したテーブル名(QueryCacheを使用する場合のみ) */
+	private Set<String> writtenTables = null;
+	/** トランザクション中に変更した行の主キー(RowCacheを使用する場合のみ)。nullの場合はキャッシュ全体 */
+	private Map<RowCache, Set<Object>> writtenRows = null;
+	/** ConnectionPoolから取得したConnectionの場合true */
+	private boolean pooled = false;
+	
+	/** SQLごとのパラメータのデータ型(nullパラメータのsetNullに使用) */
+	private Map<String, int[]> nullTypeCache;
 	
 	public DBTool(Connection con) {
 		this.con = con;
+		this.nullTypeCache = createNullTypeCache();
+	}
+	
+	/**
+	 * ConnectionPoolから取得したConnectionで構築します。<br>
+	 * StatementCacheは物理Connectionごとに、nullパラメータのデータ型はプール全体で共有されます。
+	 */
+	DBTool(Connection con, StatementCache statementCache, Map<String, int[]> nullTypeCache) {
+		this.con = con;
+		this.statementCache = statementCache;
+		this.nullTypeCache = nullTypeCache;
+		this.pooled = true;
+	}
+	
+	/**
+	 * nullパラメータのデータ型のキャッシュを作成します。<br>
+	 * 最大件数を超えた場合は最も古く使用されたSQLから削除されます。
+	 * 複数のスレッドで共有できるように同期化されています。
+	 */
+	static Map<String, int[]> createNullTypeCache() {
+		return Collections.synchronizedMap(new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+				return size() > MAX_NULL_TYPES;
+			}
+		});
 	}
 	
 	public Connection getConnection() { return this.con;}
 	
+	/**
+	 * PreparedStatementをキャッシュする件数を設定します。<br>
+	 * 0以下の場合はキャッシュしません。(デフォルト)
+	 */
+	public void setStatementCacheSize(int size) {
+		if (this.statementCache != null) {
+			this.statementCache.close();
+		}
+		this.statementCache = size > 0 ? new StatementCache(this.con, size) : null;
+	}
+	
+	/**
+	 * PreparedStatementのキャッシュを返します。<br>
+	 * キャッシュが有効でない場合はnullを返します。
+	 */
+	public StatementCache getStatementCache() { return this.statementCache;}
+	
+	/**
+	 * selectEachおよびopenCursorで一度に取得する行数を返します。
+	 */
+	public int getFetchSize() { return this.fetchSize;}
+	
+	/**
+	 * selectEachおよびopenCursorで一度に取得する行数を設定します。<br>
+	 * デフォルトは1000です。
+	 */
+	public void setFetchSize(int n) { this.fetchSize = n;}
+	
+	/**
+	 * insert(List)で1つのINSERT文にまとめる行数を返します。
+	 */
+	public int getMultiRowInsertSize() { return this.multiRowInsertSize;}
+	
+	/**
+	 * insert(List)で1つのINSERT文にまとめる行数を設定します。<br>
+	 * 2以上の場合は「INSERT ... VALUES (...),(...),...」の形式で複数行をまとめてINSERTします。<br>
+	 * 1以下の場合は1行ずつのINSERT文をバッチで実行します。(デフォルト)
+	 */
+	public void setMultiRowInsertSize(int n) { this.multiRowInsertSize = n;}
+	
+	/**
+	 * 1つのSQLで使用できるパラメータの最大数を返します。
+	 */
+	public int getMaxParameters() { return this.maxParameters;}
+	
+	/**
+	 * 1つのSQLで使用できるパラメータの最大数を設定します。<br>
+	 * 複数行のINSERT文の行数はこの値を超えないように調整されます。<br>
+	 * デフォルトはPostgreSQLのJDBCドライバの上限である32767です。
+	 */
+	public void setMaxParameters(int n) { this.maxParameters = n;}
+	
+	/**
+	 * selectByKeysで配列のパラメータを使用するかどうかを返します。
+	 */
+	public boolean isArrayKeyLookup() { return this.arrayKeyLookup;}
+	
+	/**
+	 * selectByKeysで配列のパラメータを使用するかどうかを設定します。(デフォルトfalse)<br>
+	 * trueの場合、配列のパラメータに対応しているデータベースでは単一の主キーを「= ANY(?)」で検索します。
+	 * 配列の型は主キーの列の型から決定し、対応する型がない場合はIN句を使用します。
+	 */
+	public void setArrayKeyLookup(boolean b) { this.arrayKeyLookup = b;}
+	
+	/**
+	 * insert、update、deleteのList版で一度に実行するバッチの行数を返します。
+	 */
+	public int getBatchSize() { return this.batchSize;}
+	
+	/**
+	 * insert、update、deleteのList版で一度に実行するバッチの行数を設定します。<br>
+	 * 指定の行数ごとにexecuteBatchが実行されるので、
+	 * ドライバが保持するパラメータはこの行数までとなります。<br>
+	 * 0以下の場合はListのすべての行を1つのバッチで実行します。(デフォルト)
+	 */
+	public void setBatchSize(int n) { this.batchSize = n;}
+	
+	/**
+	 * 何回のexecuteBatchごとにcommitするかを返します。
+	 */
+	public int getCommitInterval() { return this.commitInterval;}
+	
+	/**
+	 * 何回のexecuteBatchごとにcommitするかを設定します。<br>
+	 * AutoCommitがfalseの場合のみ有効です。
+	 * 0以下の場合は途中でcommitしません。(デフォルト)
+	 */
+	public void setCommitInterval(int n) { this.commitInterval = n;}
+	
+	public ProgressListener getProgressListener() { return this.progressListener;}
+	
+	/**
+	 * insert、update、deleteのList版でexecuteBatchごとに呼び出されるリスナーを設定します。
+	 */
+	public void setProgressListener(ProgressListener l) { this.progressListener = l;}
+	
+	/**
+	 * updateでsetにより変更されたフィールドのみを更新するかどうかを返します。
+	 */
+	public boolean isUpdateModifiedOnly() { return this.updateModifiedOnly;}
+	
+	/**
+	 * updateでsetにより変更されたフィールドのみを更新するかどうかを設定します。<br>
+	 * trueの場合、変更されたフィールドがないTableはUPDATEを実行せずに0を返し、afterUpdateも発生しません。<br>
+	 * List版では変更されたフィールドの組み合わせが同じ連続した行ごとにバッチが実行されます。
+	 */
+	public void setUpdateModifiedOnly(boolean b) { this.updateModifiedOnly = b;}
+	
+	/**
+	 * upsertで使用するSQLの方言を返します。<br>
+	 * 設定されていない場合はDatabaseMetaDataの製品名から判定します。
+	 * 判定できない場合はSQLExceptionをスローするので、setDialectで設定してください。
+	 */
+	public Dialect getDialect() throws SQLException {
+		Dialect ret = findDialect();
+		if (ret == null) {
+			throw new SQLException("Unsupported database: " + con.getMetaData().getDatabaseProductName() + ". Use setDialect.");
+		}
+		return ret;
+	}
+	
+	/**
+	 * getDialectと同様に方言を返しますが、判定できない場合はnullを返します。<br>
+	 * 方言が必須でない処理で使用します。
+	 */
+	Dialect findDialect() throws SQLException {
+		if (this.dialect == null) {
+			try {
+				this.dialect = Dialect.fromProductName(con.getMetaData().getDatabaseProductName());
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+		return this.dialect;
+	}
+	
+	/**
+	 * upsertで使用するSQLの方言を設定します。
+	 */
+	public void setDialect(Dialect d) { this.dialect = d;}
+	
+	public QueryCache getQueryCache() { return this.queryCache;}
+	
+	/**
+	 * SelectBuilderとCompiledQueryのselect、selectListの結果を保持するQueryCacheを設定します。<br>
+	 * このDBToolでINSERT、UPDATE、DELETE、UPSERTしたテーブルを参照する結果は無効化されます。
+	 * AutoCommitがfalseの場合は、commitまたはrollbackの時点で再度無効化され、
+	 * それまでの間はそのテーブルを参照する検索にキャッシュを使用しません。<br>
+	 * nullの場合はキャッシュを使用しません。(デフォルト)
+	 */
+	public void setQueryCache(QueryCache cache) { this.queryCache = cache;}
+	
+	public StatementMetrics getStatementMetrics() { return this.metrics;}
+	
+	/**
+	 * SQLの準備、実行、結果の読み込みの処理時間を通知するStatementMetricsを設定します。<br>
+	 * nullの場合は時間を計測しません。(デフォルト)
+	 * @see MetricsCollector
+	 */
+	public void setStatementMetrics(StatementMetrics m) { this.metrics = m;}
+	
+	/**
+	 * キャッシュされているPreparedStatementをすべてcloseします。<br>
+	 * Connectionはcloseされません。使用中のCursorのPreparedStatementはCursorのcloseでcloseされます。
+	 * close後もDBToolは使用でき、PreparedStatementは新しいキャッシュに保持されます。<br>
+	 * ConnectionPool.getDBToolで取得した場合はConnectionをプールに返却します。
+	 * この場合PreparedStatementのキャッシュは次の使用者に引き継がれます。<br>
+	 * トランザクション中に変更したテーブルの記録は破棄され、キャッシュは再度無効化されます。
+	 */
+	public void close() {
+		endTransaction();
+		if (this.pooled) {
+			try {
+				this.con.close();
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+			return;
+		}
+		if (this.statementCache != null) {
+			setStatementCacheSize(this.statementCache.getMaxSize());
+		}
+	}
+	
 	/**
 	 * ResultSetからオブジェクトを生成するインターフェース
 	 */
@@ -43,58 +283,225 @@ public class DBTool {
 		public boolean addBatch(PreparedStatement stmt) throws SQLException;
 	}
 	
+	/**
+	 * バッチ処理の進捗を受け取るインターフェース
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param processed 処理済みの行数
+		 * @param total 全体の行数
+		 */
+		public void progress(int processed, int total) throws SQLException;
+	}
+	
+	/**
+	 * 検索結果を1行ずつ処理するインターフェース
+	 */
+	public interface RowHandler<T> {
+		/**
+		 * 1行を処理します。<br>
+		 * falseを返した場合は以降の行は処理されません。
+		 */
+		public boolean handle(T row) throws SQLException;
+	}
+	
 	public void setParameters(PreparedStatement stmt, Object... params) throws SQLException {
-		ParameterMetaData metaData = null;
-		int idx = 0;
+		setParameters(null, stmt, params);
+	}
+	
+	/**
+	 * nullパラメータのデータ型はSQLごとにキャッシュされ、
+	 * ParameterMetaDataの取得は同じSQLに対して一度だけ行われます。<br>
+	 * 要素ごとに展開される配列のnullの要素も同様に設定されます。
+	 */
+	private void setParameters(String sql, PreparedStatement stmt, Object... params) throws SQLException {
+		int[] nullTypes = null;
+		int idx = 1;
 		for (int i=0; i<params.length; i++) {
-			idx++;
 			Object o = params[i];
 			if (o == null) {
-				if (metaData == null) {
-					metaData = stmt.getParameterMetaData();
+				if (nullTypes == null) {
+					nullTypes = getParameterTypes(sql, stmt);
 				}
-				int sqlType = metaData.getParameterType(idx);
-				stmt.setNull(idx, sqlType);
-			} else if (o.getClass().isArray()) {
-				int len = Array.getLength(o);
-				for (int j=0; j<len; j++) {
-					if (j != 0) {
-						idx++;
-					}
-					setParameter(stmt, idx, Array.get(o, j));
+				stmt.setNull(idx, nullTypes[idx - 1]);
+				idx++;
+			} else if (ParameterBinders.isExpandedArray(o)) {
+				idx = setElements(sql, stmt, idx, (Object[])o);
+			} else {
+				idx += ParameterBinders.bind(stmt, idx, o);
+			}
+		}
+	}
+	
+	//配列を要素ごとに設定して次のパラメータの位置を返す
+	private int setElements(String sql, PreparedStatement stmt, int idx, Object[] array) throws SQLException {
+		int[] nullTypes = null;
+		for (Object o : array) {
+			if (o == null) {
+				if (nullTypes == null) {
+					nullTypes = getParameterTypes(sql, stmt);
 				}
+				stmt.setNull(idx, nullTypes[idx - 1]);
+				idx++;
+			} else if (ParameterBinders.isExpandedArray(o)) {
+				idx = setElements(sql, stmt, idx, (Object[])o);
 			} else {
-				setParameter(stmt, idx, o);
+				idx += ParameterBinders.bind(stmt, idx, o);
+			}
+		}
+		return idx;
+	}
+	
+	private int[] getParameterTypes(String sql, PreparedStatement stmt) throws SQLException {
+		int[] ret = sql == null ? null : this.nullTypeCache.get(sql);
+		if (ret == null) {
+			ParameterMetaData metaData = stmt.getParameterMetaData();
+			ret = new int[metaData.getParameterCount()];
+			for (int i=0; i<ret.length; i++) {
+				ret[i] = metaData.getParameterType(i + 1);
+			}
+			if (sql != null) {
+				this.nullTypeCache.put(sql, ret);
 			}
 		}
+		return ret;
 	}
 	
+	/**
+	 * 値のクラスに対応するParameterBinderで値を設定します。
+	 * @see ParameterBinders
+	 */
 	public void setParameter(PreparedStatement stmt, int idx, Object o) throws SQLException {
-		if (o instanceof String) {
-			stmt.setString(idx, o.toString());
-		} else if (o instanceof Integer) {
-			stmt.setInt(idx, ((Integer)o).intValue());
-		} else if (o instanceof Boolean) {
-			stmt.setBoolean(idx, ((Boolean)o).booleanValue());
-		} else if (o instanceof Long) {
-			stmt.setLong(idx, ((Long)o).longValue());
-		} else if (o instanceof Double) {
-			stmt.setDouble(idx, ((Double)o).doubleValue());
-		} else if (o instanceof BigDecimal) {
-			stmt.setBigDecimal(idx, (BigDecimal)o);
-		} else if (o instanceof java.sql.Date) {
-			stmt.setDate(idx, (java.sql.Date)o);
-		} else if (o instanceof Timestamp) {
-			stmt.setTimestamp(idx, (Timestamp)o);
-		} else if (o instanceof byte[]) {
-			stmt.setBytes(idx, (byte[])o);
-		} else {
-			throw new IllegalStateException(o.getClass().toString());
+		ParameterBinders.bind(stmt, idx, o);
+	}
+	
+	/**
+	 * Listの各行をBatchSizeごとにexecuteBatchで実行して更新件数の合計を返します。
+	 */
+	private int executeBatch(PreparedStatement stmt, StatementPlan plan, List<? extends Table> list) throws SQLException {
+		return executeBatch(stmt, plan, list, 0, list.size());
+	}
+	
+	/**
+	 * @param offset 進捗として通知する処理済みの行数に加算する値
+	 * @param total 進捗として通知する全体の行数
+	 */
+	private int executeBatch(PreparedStatement stmt, StatementPlan plan, List<? extends Table> list, int offset, int total) throws SQLException {
+		return executeBatch(stmt, plan, list, offset, total, null);
+	}
+	
+	/**
+	 * @param key nullでない場合、executeBatchごとに生成されたキーを各Tableに設定します
+	 */
+	private int executeBatch(PreparedStatement stmt, StatementPlan plan, List<? extends Table> list, int offset, int total, Field key) throws SQLException {
+		boolean commit = this.commitInterval > 0 && !con.getAutoCommit();
+		int ret = 0;
+		int chunk = 0;
+		int pending = 0;
+		int processed = 0;
+		boolean executed = false;
+		boolean success = false;
+		try {
+			for (Table t : list) {
+				setParameters(stmt, plan, t);
+				stmt.addBatch();
+				pending++;
+				processed++;
+				if (pending == this.batchSize || processed == list.size()) {
+					executed = true;
+					int[] results = executeBatch(plan.getSQL(), stmt, pending);
+					for (int n : results) {
+						ret += n;
+					}
+					if (key != null) {
+						setGeneratedKeys(stmt, list, processed - pending, processed, key);
+					}
+					pending = 0;
+					afterChunk(++chunk, commit, offset + processed, total);
+				}
+			}
+			success = true;
+		} finally {
+			if (executed && !success) {
+				writeFailed(list.get(0));
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * 途中で失敗した書き込みのテーブル全体のキャッシュを無効化します。<br>
+	 * AutoCommitまたはCommitIntervalによって先行する行がコミットされている可能性があるため、
+	 * 後続の処理で行われる無効化の代わりに呼び出します。
+	 */
+	private void writeFailed(Table t) {
+		try {
+			tableWritten(t, false);
+		} catch (SQLException e) {
+			//元の例外を優先する。キャッシュの無効化はgetAutoCommitより前に行われている
+		}
+	}
+	
+	//主キーがAutoNumberの単一フィールドの場合はそのフィールド、それ以外はnull
+	private static Field getSerialKey(Table t) {
+		if (!t.useSerialKey()) {
+			return null;
+		}
+		List<Field> keys = t.getSchema().getKeys();
+		return keys.size() == 1 ? keys.get(0) : null;
+	}
+	
+	//getGeneratedKeysが主キー以外の列を含む場合があるので名前で検索する
+	private static int findKeyColumn(ResultSet rs, Field key) {
+		if (key != null) {
+			try {
+				return rs.findColumn(key.getName());
+			} catch (SQLException e) {
+				//ignore
+			}
+		}
+		return 1;
+	}
+	
+	/**
+	 * 生成されたキーをListのfromからtoまでのTableの主キーに設定します。
+	 */
+	private void setGeneratedKeys(PreparedStatement stmt, List<? extends Table> list, int from, int to, Field key) throws SQLException {
+		ResultSet rs = stmt.getGeneratedKeys();
+		try {
+			int col = 0;
+			for (int i=from; i<to && rs.next(); i++) {
+				if (col == 0) {
+					col = findKeyColumn(rs, key);
+				}
+				list.get(i).setLoadedValue(key, SelectBuilder.getValue(rs, col, key.getType()));
+			}
+		} finally {
+			rs.close();
+		}
+	}
+	
+	private void afterChunk(int chunk, boolean commit, int processed, int total) throws SQLException {
+		if (commit && chunk % this.commitInterval == 0) {
+			con.commit();
+		}
+		if (this.progressListener != null) {
+			this.progressListener.progress(processed, total);
+		}
+	}
+	
+	private void setParameters(PreparedStatement stmt, StatementPlan plan, Table t) throws SQLException {
+		setParameters(stmt, plan, t, 0);
+	}
+	
+	private void setParameters(PreparedStatement stmt, StatementPlan plan, Table t, int offset) throws SQLException {
+		for (int i=0; i<plan.getParameterCount(); i++) {
+			setParameter(stmt, offset+i+1, t, plan.getParameter(i));
 		}
 	}
 	
 	private void setParameter(PreparedStatement stmt, int idx, Table t, Field f) throws SQLException {
-		Object o = convertDate(f, t.get(f.getName()));
+		Object o = convertDate(f, t.get(f));
 		if (o == null) {
 			stmt.setNull(idx, f.getType());
 		} else {
@@ -121,63 +528,435 @@ public class DBTool {
 		return o;
 	}
 	
+	protected PreparedStatement prepareStatement(String sql) throws SQLException {
+		return prepareStatement(sql, Statement.NO_GENERATED_KEYS);
+	}
+	
+	protected PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		if (this.metrics == null) {
+			return doPrepareStatement(sql, autoGeneratedKeys);
+		}
+		long start = System.nanoTime();
+		PreparedStatement ret = doPrepareStatement(sql, autoGeneratedKeys);
+		this.metrics.prepared(sql, System.nanoTime() - start);
+		return ret;
+	}
+	
+	private PreparedStatement doPrepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		if (this.statementCache != null) {
+			return this.statementCache.prepare(sql, autoGeneratedKeys);
+		}
+		return autoGeneratedKeys == Statement.NO_GENERATED_KEYS ? 
+			con.prepareStatement(sql) :
+			con.prepareStatement(sql, autoGeneratedKeys);
+	}
+	
+	//以下のexecuteXXXはStatementMetricsが設定されている場合に処理時間を通知する
+	private ResultSet executeQuery(String sql, PreparedStatement stmt) throws SQLException {
+		if (this.metrics == null) {
+			return stmt.executeQuery();
+		}
+		long start = System.nanoTime();
+		ResultSet ret = stmt.executeQuery();
+		this.metrics.executed(sql, System.nanoTime() - start, -1);
+		return ret;
+	}
+	
+	private int executeUpdate(String sql, PreparedStatement stmt) throws SQLException {
+		if (this.metrics == null) {
+			return stmt.executeUpdate();
+		}
+		long start = System.nanoTime();
+		int ret = stmt.executeUpdate();
+		this.metrics.executed(sql, System.nanoTime() - start, ret);
+		return ret;
+	}
+	
+	private int[] executeBatch(String sql, PreparedStatement stmt, int batchSize) throws SQLException {
+		if (this.metrics == null) {
+			return stmt.executeBatch();
+		}
+		long start = System.nanoTime();
+		int[] ret = stmt.executeBatch();
+		long nanos = System.nanoTime() - start;
+		int count = 0;
+		for (int n : ret) {
+			if (n > 0) {
+				count += n;
+			}
+		}
+		this.metrics.batchExecuted(sql, nanos, batchSize, count);
+		return ret;
+	}
+	
+	//結果の読み込みの開始時刻。StatementMetricsが設定されていない場合は計測しない
+	private long fetchStart() {
+		return this.metrics == null ? 0 : System.nanoTime();
+	}
+	
+	private void fetched(String sql, long start, int rows) {
+		if (this.metrics != null) {
+			this.metrics.fetched(sql, System.nanoTime() - start, rows);
+		}
+	}
+	
+	protected void closeStatement(PreparedStatement stmt) throws SQLException {
+		if (this.statementCache != null) {
+			this.statementCache.release(stmt);
+		} else {
+			stmt.close();
+		}
+	}
+	
 	/**
 	 * SQLを実行してオブジェクトを生成する汎用メソッド
 	 */
 	public <T> T create(String sql, Creator<T> creator, Object... params) throws SQLException {
-		PreparedStatement stmt = con.prepareStatement(sql);
+		PreparedStatement stmt = prepareStatement(sql);
 		try {
-			setParameters(stmt, params);
-			ResultSet rs = stmt.executeQuery();
+			setParameters(sql, stmt, params);
+			ResultSet rs = executeQuery(sql, stmt);
 			try {
-				return creator.create(rs);
+				long start = fetchStart();
+				T ret = creator.create(rs);
+				fetched(sql, start, -1);
+				return ret;
 			} finally {
 				rs.close();
 			}
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
 	public <T extends Table> T select(SelectBuilder builder, T table, Object... params) throws SQLException {
-		PreparedStatement stmt = con.prepareStatement(builder.toSQL());
-		try {
-			setParameters(stmt, params);
-			ResultSet rs = stmt.executeQuery();
-			try {
-				if (rs.next()) {
-					T ret = (T)table.clone();
-					ret.setValueMap(builder.map(rs));
-					return ret;
+		if (builder.isBindLiterals() || this.queryCache != null) {
+			return select(builder.compile(), table, params);
+		}
+		return select(builder.toSQL(), new RowMapper<T>(builder, table), params);
+	}
+	
+	public <T extends Table> List<T> selectList(SelectBuilder builder, T table, Object... params) throws SQLException {
+		if (builder.isBindLiterals() || this.queryCache != null) {
+			return selectList(builder.compile(), table, params);
+		}
+		return selectList(builder.toSQL(), new RowMapper<T>(builder, table), params);
+	}
+	
+	/**
+	 * CompiledQueryを実行して先頭行をTableにコピーして返します。<br>
+	 * 該当行がない場合はnullを返します。
+	 */
+	public <T extends Table> T select(CompiledQuery query, T table, Object... params) throws SQLException {
+		Object[] values = query.getParameters(params);
+		if (!useQueryCache(query)) {
+			return select(query.getSQL(), new RowMapper<T>(query, table), values);
+		}
+		long version = this.queryCache.getVersion();
+		List<Table> cached = this.queryCache.get(table.getClass(), query.getSQL(), values, true);
+		if (cached != null) {
+			if (cached.size() == 0) {
+				return null;
+			}
+			//キャッシュはtableのクラスごとに保持される
+			@SuppressWarnings("unchecked")
+			T ret = (T)cached.get(0);
+			return ret;
+		}
+		T ret = select(query.getSQL(), new RowMapper<T>(query, table), values);
+		List<T> list = ret == null ? Collections.<T>emptyList() : Collections.singletonList(ret);
+		this.queryCache.put(table.getClass(), query.getSQL(), values, true, query.getTableNames(), list, version);
+		return ret;
+	}
+	
+	/**
+	 * CompiledQueryを実行して全行をTableのリストとして返します。
+	 */
+	public <T extends Table> List<T> selectList(CompiledQuery query, T table, Object... params) throws SQLException {
+		Object[] values = query.getParameters(params);
+		if (!useQueryCache(query)) {
+			return selectList(query.getSQL(), new RowMapper<T>(query, table), values);
+		}
+		long version = this.queryCache.getVersion();
+		List<Table> cached = this.queryCache.get(table.getClass(), query.getSQL(), values, false);
+		if (cached != null) {
+			//キャッシュはtableのクラスごとに保持される
+			@SuppressWarnings("unchecked")
+			List<T> ret = (List<T>)cached;
+			return ret;
+		}
+		List<T> ret = selectList(query.getSQL(), new RowMapper<T>(query, table), values);
+		this.queryCache.put(table.getClass(), query.getSQL(), values, false, query.getTableNames(), ret, version);
+		return ret;
+	}
+	
+	/**
+	 * QueryCacheを使用せずに検索します。<br>
+	 * selectByKeysの検索で使用します。検索した行はRowCacheに保持されるので、QueryCacheには追加しません。
+	 */
+	<T extends Table> List<T> selectListUncached(CompiledQuery query, T table, Object... params) throws SQLException {
+		return selectList(query.getSQL(), new RowMapper<T>(query, table), query.getParameters(params));
+	}
+	
+	//行をロックする場合とトランザクション中に変更したテーブルを参照する場合は使用しない
+	private boolean useQueryCache(CompiledQuery query) throws SQLException {
+		if (this.queryCache == null || query.isForUpdate() || query.getTableNames().size() == 0) {
+			return false;
+		}
+		checkTransaction();
+		if (this.writtenTables != null) {
+			for (String name : query.getTableNames()) {
+				if (this.writtenTables.contains(name.toLowerCase())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private boolean isWritten(Table t) throws SQLException {
+		checkTransaction();
+		return this.writtenTables != null && this.writtenTables.contains(t.getTableName().toLowerCase());
+	}
+	
+	private void tableWritten(Table t, boolean byKey) throws SQLException {
+		tableWritten(Collections.singletonList(t), byKey);
+	}
+	
+	/**
+	 * QueryCacheのテーブルを参照する結果とRowCacheの行を無効化します。<br>
+	 * RowCacheの行はTableListenerとして削除されるので、ここではトランザクションの終了時のために記録します。
+	 * @param byKey 主キーをWHERE句として変更した場合true。falseの場合はRowCacheをクリアします
+	 */
+	private void tableWritten(List<? extends Table> list, boolean byKey) throws SQLException {
+		Table first = list.get(0);
+		RowCache rowCache = first.getSchema().getRowCache();
+		if (this.queryCache == null && rowCache == null) {
+			return;
+		}
+		String name = first.getTableName();
+		if (this.queryCache != null) {
+			this.queryCache.invalidate(name);
+		}
+		if (rowCache != null && !byKey) {
+			rowCache.clear();
+		}
+		if (con.getAutoCommit()) {
+			endTransaction();
+			return;
+		}
+		if (this.writtenTables == null) {
+			this.writtenTables = new HashSet<String>();
+		}
+		this.writtenTables.add(name.toLowerCase());
+		if (rowCache != null) {
+			if (this.writtenRows == null) {
+				this.writtenRows = new HashMap<RowCache, Set<Object>>();
+			}
+			Set<Object> keys = this.writtenRows.get(rowCache);
+			if (keys == null && !this.writtenRows.containsKey(rowCache)) {
+				keys = new HashSet<Object>();
+			}
+			if (keys != null) {
+				for (Table t : list) {
+					Object key = byKey ? RowCache.getKey(t) : null;
+					if (key == null) {
+						keys = null;
+						break;
+					}
+					keys.add(key);
+				}
+			}
+			this.writtenRows.put(rowCache, keys);
+		}
+	}
+	
+	//主キーがWHERE句の場合true
+	private static boolean isKeyWhere(Table t, List<Field> wheres) {
+		List<Field> keys = t.listKeys();
+		if (keys.size() == 0 || keys.size() != wheres.size()) {
+			return false;
+		}
+		for (Field f : wheres) {
+			if (!t.getSchema().getKeys().contains(t.getSchema().getField(f.getName()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	//ConnectionのsetAutoCommit(true)などでトランザクションが終了している場合は記録を破棄する
+	private void checkTransaction() throws SQLException {
+		if (this.writtenTables != null && con.getAutoCommit()) {
+			endTransaction();
+		}
+	}
+	
+	//トランザクションの終了時に変更したテーブルと行を再度無効化する
+	private void endTransaction() {
+		if (this.writtenTables == null) {
+			return;
+		}
+		if (this.queryCache != null) {
+			for (String name : this.writtenTables) {
+				this.queryCache.invalidate(name);
+			}
+		}
+		if (this.writtenRows != null) {
+			for (Map.Entry<RowCache, Set<Object>> entry : this.writtenRows.entrySet()) {
+				RowCache rowCache = entry.getKey();
+				if (entry.getValue() == null) {
+					rowCache.clear();
 				} else {
-					return null;
+					for (Object key : entry.getValue()) {
+						rowCache.remove(key);
+					}
 				}
+			}
+		}
+		this.writtenTables = null;
+		this.writtenRows = null;
+	}
+	
+	/**
+	 * 検索結果を全件メモリに保持せずに1行ずつhandlerで処理します。<br>
+	 * 結果はFetchSizeごとに取得されます。
+	 * AutoCommitがtrueの場合は処理中のみfalseに変更されます。
+	 * @return 処理した行数
+	 */
+	public <T extends Table> int selectEach(SelectBuilder builder, T table, RowHandler<? super T> handler, Object... params) throws SQLException {
+		if (builder.isBindLiterals()) {
+			return selectEach(builder.compile(), table, handler, params);
+		}
+		return selectEach(builder.toSQL(), new RowMapper<T>(builder, table), handler, params);
+	}
+	
+	/**
+	 * 検索結果を全件メモリに保持せずに1行ずつhandlerで処理します。<br>
+	 * 結果はFetchSizeごとに取得されます。
+	 * AutoCommitがtrueの場合は処理中のみfalseに変更されます。
+	 * @return 処理した行数
+	 */
+	public <T extends Table> int selectEach(CompiledQuery query, T table, RowHandler<? super T> handler, Object... params) throws SQLException {
+		return selectEach(query.getSQL(), new RowMapper<T>(query, table), handler, query.getParameters(params));
+	}
+	
+	/**
+	 * 検索結果を1行ずつ読み込むCursorを返します。<br>
+	 * 結果はFetchSizeごとに取得されます。
+	 * AutoCommitがtrueの場合はCursorがcloseされるまでfalseに変更されます。
+	 */
+	public <T extends Table> Cursor<T> openCursor(SelectBuilder builder, T table, Object... params) throws SQLException {
+		if (builder.isBindLiterals()) {
+			return openCursor(builder.compile(), table, params);
+		}
+		return openCursor(builder.toSQL(), new RowMapper<T>(builder, table), params);
+	}
+	
+	/**
+	 * 検索結果を1行ずつ読み込むCursorを返します。<br>
+	 * 結果はFetchSizeごとに取得されます。
+	 * AutoCommitがtrueの場合はCursorがcloseされるまでfalseに変更されます。
+	 */
+	public <T extends Table> Cursor<T> openCursor(CompiledQuery query, T table, Object... params) throws SQLException {
+		return openCursor(query.getSQL(), new RowMapper<T>(query, table), query.getParameters(params));
+	}
+	
+	private <T extends Table> int selectEach(String sql, RowMapper<T> mapper, RowHandler<? super T> handler, Object... params) throws SQLException {
+		Cursor<T> cursor = openCursor(sql, mapper, params);
+		try {
+			int cnt = 0;
+			while (cursor.hasNext()) {
+				cnt++;
+				if (!handler.handle(cursor.next())) {
+					break;
+				}
+			}
+			return cnt;
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException)e.getCause();
+			}
+			throw e;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	private <T extends Table> Cursor<T> openCursor(String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+		//PostgreSQLなどではAutoCommitがtrueの場合FetchSizeが無視される
+		boolean restoreAutoCommit = con.getAutoCommit();
+		if (restoreAutoCommit) {
+			con.setAutoCommit(false);
+		}
+		PreparedStatement stmt = null;
+		try {
+			stmt = prepareStatement(sql);
+			stmt.setFetchSize(this.fetchSize);
+			setParameters(sql, stmt, params);
+			ResultSet rs = executeQuery(sql, stmt);
+			return new Cursor<T>(this, sql, stmt, rs, mapper, restoreAutoCommit);
+		} catch (SQLException e) {
+			closeStreamingStatement(stmt, restoreAutoCommit);
+			throw e;
+		} catch (RuntimeException e) {
+			closeStreamingStatement(stmt, restoreAutoCommit);
+			throw e;
+		}
+	}
+	
+	void closeStreamingStatement(PreparedStatement stmt, boolean restoreAutoCommit) throws SQLException {
+		try {
+			if (stmt != null) {
+				try {
+					stmt.setFetchSize(0);
+				} finally {
+					closeStatement(stmt);
+				}
+			}
+		} finally {
+			if (restoreAutoCommit) {
+				con.setAutoCommit(true);
+			}
+		}
+	}
+	
+	private <T extends Table> T select(String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+		PreparedStatement stmt = prepareStatement(sql);
+		try {
+			setParameters(sql, stmt, params);
+			ResultSet rs = executeQuery(sql, stmt);
+			try {
+				long start = fetchStart();
+				T ret = rs.next() ? mapper.map(rs) : null;
+				fetched(sql, start, ret == null ? 0 : 1);
+				return ret;
 			} finally {
 				rs.close();
 			}
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
-	public <T extends Table> List<T> selectList(SelectBuilder builder, T table, Object... params) throws SQLException {
-		PreparedStatement stmt = con.prepareStatement(builder.toSQL());
+	private <T extends Table> List<T> selectList(String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+		PreparedStatement stmt = prepareStatement(sql);
 		try {
-			setParameters(stmt, params);
-			ResultSet rs = stmt.executeQuery();
+			setParameters(sql, stmt, params);
+			ResultSet rs = executeQuery(sql, stmt);
 			try {
+				long start = fetchStart();
 				List<T> list = new ArrayList<T>();
 				while (rs.next()) {
-					T ret = (T)table.clone();
-					ret.setValueMap(builder.map(rs));
-					list.add(ret);
+					list.add(mapper.map(rs));
 				}
+				fetched(sql, start, list.size());
 				return list;
 			} finally {
 				rs.close();
 			}
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
@@ -196,6 +975,63 @@ public class DBTool {
 		return create(sql, c, params);
 	}
 	
+	/**
+	 * 主キーの値の一覧から行を検索し、主キーの値をキーとするMapを返します。<br>
+	 * キーはパラメータの上限を超えないように分割して検索されます。
+	 * setArrayKeyLookupでtrueを設定した場合は「= ANY(?)」を使用します。<br>
+	 * 複合主キーの場合、keysの要素は主キーの順の値の配列とし、Mapのキーは値のListとなります。<br>
+	 * Mapのキーはkeysで指定した値で、整数のクラスが列の型と異なる場合(LongとINTEGERなど)も一致します。
+	 * 該当する行がないキーはMapに含まれません。<br>
+	 * TableSchemaにRowCacheが設定されている場合はキャッシュに存在しないキーのみを検索し、
+	 * 検索した行をキャッシュに追加します。
+	 */
+	public <T extends Table> Map<Object, T> selectByKeys(T prototype, Collection<?> keys) throws SQLException {
+		KeyLookup lookup = KeyLookup.get(prototype, this.arrayKeyLookup ? findDialect() : null, this.maxParameters);
+		Map<Object, Object> index = lookup.index(keys);
+		Map<Object, T> ret = new LinkedHashMap<Object, T>();
+		//トランザクション中に変更した行はcommitされるまでキャッシュしない
+		long version = isWritten(prototype) ? -1 : lookup.getCacheVersion();
+		for (Object[] chunk : lookup.split(lookup.getCached(prototype, index, ret))) {
+			lookup.put(index, ret, lookup.select(this, prototype, chunk), version);
+		}
+		return ret;
+	}
+	
+	/**
+	 * 主キーの値で1行を検索します。該当行がない場合はnullを返します。<br>
+	 * TableSchemaにRowCacheが設定されている場合はキャッシュの行の複製を返し、
+	 * キャッシュにない場合は検索した行をキャッシュに追加します。
+	 * @param key 主キーの値。複合主キーの場合は主キーの順に指定します
+	 */
+	public <T extends Table> T selectByKey(T prototype, Object... key) throws SQLException {
+		Map<Object, T> map = selectByKeys(prototype, Collections.singletonList(key.length == 1 ? key[0] : key));
+		return map.size() == 0 ? null : map.values().iterator().next();
+	}
+	
+	/**
+	 * SelectBuilderの検索結果の件数を返します。<br>
+	 * paramsはSelectBuilderの検索と同じものを指定します。LIMIT、OFFSETのパラメータは除かれます。
+	 * @see SelectBuilder#toCountSQL
+	 */
+	public int getCount(SelectBuilder builder, Object... params) throws SQLException {
+		CompiledQuery query = builder.compileCount();
+		return getCount(query.getSQL(), query.getParameters(getCountParameters(builder, params)));
+	}
+	
+	//LIMIT、OFFSETのパラメータを除いたパラメータ
+	static Object[] getCountParameters(SelectBuilder builder, Object[] params) {
+		int n = builder.getLimitParameterCount();
+		if (n == 0) {
+			return params;
+		}
+		if (params.length < n) {
+			throw new IllegalArgumentException("Missing limit parameters");
+		}
+		Object[] ret = new Object[params.length - n];
+		System.arraycopy(params, 0, ret, 0, ret.length);
+		return ret;
+	}
+	
 	/**
 	 * 1行1列の数値を取得するSQLを実行する汎用メソッド
 	 */
@@ -263,12 +1099,12 @@ public class DBTool {
 	 * 更新SQLを実行する汎用メソッド
 	 */
 	public int executeUpdate(String sql, Object... params) throws SQLException {
-		PreparedStatement stmt = con.prepareStatement(sql);
+		PreparedStatement stmt = prepareStatement(sql);
 		try {
-			setParameters(stmt, params);
-			return stmt.executeUpdate();
+			setParameters(sql, stmt, params);
+			return executeUpdate(sql, stmt);
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
@@ -276,14 +1112,16 @@ public class DBTool {
 	 * 同一の更新SQLを繰り返し実行する汎用メソッド
 	 */
 	public int[] executeBatch(String sql, Batch batch) throws SQLException {
-		PreparedStatement stmt = con.prepareStatement(sql);
+		PreparedStatement stmt = prepareStatement(sql);
 		try {
+			int n = 0;
 			while (batch.addBatch(stmt)) {
 				stmt.addBatch();
+				n++;
 			}
-			return stmt.executeBatch();
+			return executeBatch(sql, stmt, n);
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
@@ -293,42 +1131,46 @@ public class DBTool {
 	 */
 	public int insert(Table t) throws SQLException {
 		t.fireBeforeInsert();
-		List<Field> fields = t.listValued();
-		if (fields == null || fields.size() == 0) {
-			throw new IllegalArgumentException();
-		}
-		String sql = t.buildInsertStatement();
+		StatementPlan plan = t.getInsertPlan();
 		
 		int rgk = t.useSerialKey() ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS;
-		PreparedStatement stmt = con.prepareStatement(sql, rgk);
+		PreparedStatement stmt = prepareStatement(plan.getSQL(), rgk);
 		try {
-			for (int i=0; i<fields.size(); i++) {
-				Field f = fields.get(i);
-				setParameter(stmt, i+1, t, f);
-			}
-			stmt.executeUpdate();
+			setParameters(stmt, plan, t);
+			executeUpdate(plan.getSQL(), stmt);
 			int ret = -1;
 			if (t.useSerialKey()) {
+				Field key = getSerialKey(t);
 				ResultSet rs = stmt.getGeneratedKeys();
 				try {
 					if (rs.next()) {
-						ret = rs.getInt(1);
+						int col = findKeyColumn(rs, key);
+						if (key == null) {
+							ret = rs.getInt(col);
+						} else {
+							Object value = SelectBuilder.getValue(rs, col, key.getType());
+							t.setLoadedValue(key, value);
+							ret = value instanceof Number ? ((Number)value).intValue() : -1;
+						}
 					}
 				} finally {
 					rs.close();
 				}
 			}
+			t.clearModified();
+			tableWritten(t, true);
 			t.fireAfterInsert();
 			return ret;
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
 	/**
 	 * 単一テーブルの複数行をまとめてINSERTします。<br>
 	 * Listの各行で設定されているフィールド名のセットはすべて同じでなければなりません。<br>
-	 * 主キーがAutoNumberの場合、生成されたNumberは取得できません。
+	 * MultiRowInsertSizeが2以上の場合は複数行のINSERT文を使用します。<br>
+	 * 主キーがAutoNumberの場合、生成されたNumberが各Tableの主キーに設定されます。
 	 */
 	public void insert(List<? extends Table> list) throws SQLException {
 		int cv = -1;
@@ -340,28 +1182,156 @@ public class DBTool {
 				throw new IllegalArgumentException();
 			}
 		}
-		List<Field> fields = list.get(0).listValued();
-		if (fields == null || fields.size() == 0) {
-			throw new IllegalArgumentException();
+		if (this.multiRowInsertSize > 1) {
+			executeMultiRow(list, null);
+		} else {
+			StatementPlan plan = list.get(0).getInsertPlan();
+			Field key = getSerialKey(list.get(0));
+			PreparedStatement stmt = key == null ?
+				prepareStatement(plan.getSQL()) :
+				prepareStatement(plan.getSQL(), Statement.RETURN_GENERATED_KEYS);
+			try {
+				executeBatch(stmt, plan, list, 0, list.size(), key);
+			} finally {
+				closeStatement(stmt);
+			}
 		}
-		String sql = list.get(0).buildInsertStatement();
-		PreparedStatement stmt = con.prepareStatement(sql);
+		tableWritten(list, true);
+		for (Table t : list) {
+			t.clearModified();
+			t.fireAfterInsert();
+		}
+	} 
+	
+	/**
+	 * 複数行のINSERT文またはUPSERT文でListをINSERTして更新件数の合計を返します。
+	 * @param upsert UPSERTの場合はその方言、INSERTの場合はnull
+	 */
+	private int executeMultiRow(List<? extends Table> list, Dialect upsert) throws SQLException {
+		Table first = list.get(0);
+		int paramCount = first.getInsertPlan().getParameterCount();
+		int rows = Math.min(this.multiRowInsertSize, Math.max(1, this.maxParameters / paramCount));
+		boolean commit = this.commitInterval > 0 && !con.getAutoCommit();
+		Field key = upsert == null ? getSerialKey(first) : null;
+		int ret = 0;
+		int idx = 0;
+		int chunk = 0;
+		boolean executed = false;
+		boolean success = false;
 		try {
-			for (Table t : list) {
-				for (int i=0; i<fields.size(); i++) {
-					Field f = fields.get(i);
-					setParameter(stmt, i+1, t, f);
+			while (idx < list.size()) {
+				int n = Math.min(rows, list.size() - idx);
+				//生成されたキーが設定された行は使用しない
+				Table t = list.get(idx);
+				StatementPlan plan = upsert == null ? t.getInsertPlan(n) : t.getUpsertPlan(upsert, n);
+				PreparedStatement stmt = key == null ?
+					prepareStatement(plan.getSQL()) :
+					prepareStatement(plan.getSQL(), Statement.RETURN_GENERATED_KEYS);
+				try {
+					for (int i=0; i<n; i++) {
+						setParameters(stmt, plan, list.get(idx + i), i * paramCount);
+					}
+					executed = true;
+					ret += executeUpdate(plan.getSQL(), stmt);
+					if (key != null) {
+						setGeneratedKeys(stmt, list, idx, idx + n, key);
+					}
+				} finally {
+					closeStatement(stmt);
 				}
-				stmt.addBatch();
+				idx += n;
+				afterChunk(++chunk, commit, idx, list.size());
 			}
-			stmt.executeBatch();
-			for (Table t : list) {
-				t.fireAfterInsert();
+			success = true;
+		} finally {
+			if (executed && !success) {
+				writeFailed(first);
 			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * 引数のTableに設定された値を主キーでUPSERTします。<br>
+	 * 主キーが一致する行があればUPDATE、なければINSERTされます。<br>
+	 * SQLはgetDialectの方言で生成されます。TableListenerのイベントは発生しません。
+	 * RowCacheが設定されている場合はクリアされます。
+	 */
+	public int upsert(Table t) throws SQLException {
+		StatementPlan plan = t.getUpsertPlan(getDialect(), 1);
+		PreparedStatement stmt = prepareStatement(plan.getSQL());
+		try {
+			setParameters(stmt, plan, t);
+			int ret = executeUpdate(plan.getSQL(), stmt);
+			t.clearModified();
+			removeRowCache(t);
+			tableWritten(t, true);
+			return ret;
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
-	} 
+	}
+	
+	/**
+	 * 単一テーブルの複数行をまとめて主キーでUPSERTします。<br>
+	 * Listの各行で設定されているフィールド名のセットはすべて同じでなければなりません。<br>
+	 * BatchSizeごとにexecuteBatchで実行されます。
+	 * MultiRowInsertSizeが2以上の場合は複数行のUPSERT文を使用します。
+	 * 1つの文で同じ行を2回更新できないので、主キーが重複する行は最後の行だけが使用されます。<br>
+	 * TableListenerのイベントは発生しません。RowCacheが設定されている場合はクリアされます。
+	 */
+	public int upsert(List<? extends Table> list) throws SQLException {
+		int cv = -1;
+		for (Table t : list) {
+			if (cv == -1) {
+				cv = t.countValued();
+			} else if (cv != t.countValued()) {
+				throw new IllegalArgumentException();
+			}
+		}
+		int ret = 0;
+		if (this.multiRowInsertSize > 1) {
+			ret = executeMultiRow(distinctKeys(list), getDialect());
+		} else {
+			StatementPlan plan = list.get(0).getUpsertPlan(getDialect(), 1);
+			PreparedStatement stmt = prepareStatement(plan.getSQL());
+			try {
+				ret = executeBatch(stmt, plan, list);
+			} finally {
+				closeStatement(stmt);
+			}
+		}
+		for (Table t : list) {
+			t.clearModified();
+		}
+		for (Table t : list) {
+			removeRowCache(t);
+		}
+		tableWritten(list, true);
+		return ret;
+	}
+	
+	//主キーが重複する行は最後の行を最後の位置に残す
+	private static List<? extends Table> distinctKeys(List<? extends Table> list) {
+		Map<Object, Table> map = new LinkedHashMap<Object, Table>();
+		for (Table t : list) {
+			Object key = RowCache.getKey(t);
+			if (key == null) {
+				key = t;
+			}
+			map.remove(key);
+			map.put(key, t);
+		}
+		return map.size() == list.size() ? list : new ArrayList<Table>(map.values());
+	}
+	
+	//UPSERTではTableListenerのイベントが発生しないので直接削除する
+	private static void removeRowCache(Table t) {
+		RowCache cache = t.getSchema().getRowCache();
+		if (cache != null) {
+			cache.remove(t);
+		}
+	}
 	
 	/**
 	 * 引数のTableに設定された値をUPDATEします。<br>
@@ -385,28 +1355,26 @@ public class DBTool {
 	 */
 	public int update(Table t, List<Field> wheres) throws SQLException {
 		t.fireBeforeUpdate();
-		List<Field> fields = t.listValued();
-		if (fields == null || fields.size() == 0) {
-			throw new IllegalArgumentException();
+		StatementPlan plan = null;
+		if (this.updateModifiedOnly) {
+			plan = t.getModifiedUpdatePlan(wheres);
+			if (plan == null) {
+				return 0;
+			}
+		} else {
+			plan = t.getUpdatePlan(wheres);
 		}
-		String sql = t.buildUpdateStatement(wheres);
 		
-		PreparedStatement stmt = con.prepareStatement(sql);
+		PreparedStatement stmt = prepareStatement(plan.getSQL());
 		try {
-			int idx = 1;
-			for (Field f : fields) {
-				if (!wheres.contains(f)) {
-					setParameter(stmt, idx++, t, f);
-				}
-			}
-			for (Field f : wheres) {
-				setParameter(stmt, idx++, t, f);
-			}
-			int ret = stmt.executeUpdate();
+			setParameters(stmt, plan, t);
+			int ret = executeUpdate(plan.getSQL(), stmt);
+			t.clearModified();
+			tableWritten(t, isKeyWhere(t, wheres));
 			t.fireAfterUpdate();
 			return ret;
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	} 
 	
@@ -434,42 +1402,88 @@ public class DBTool {
 		for (Table t : list) {
 			t.fireBeforeUpdate();
 		}
-		
-		List<Field> fields = list.get(0).listValued();
-		if (fields == null || fields.size() == 0) {
-			throw new IllegalArgumentException();
+		if (this.updateModifiedOnly) {
+			return updateModified(list, wheres);
 		}
-		String sql = list.get(0).buildUpdateStatement(wheres);
 		
-		PreparedStatement stmt = con.prepareStatement(sql);
+		StatementPlan plan = list.get(0).getUpdatePlan(wheres);
+		
+		PreparedStatement stmt = prepareStatement(plan.getSQL());
 		try {
+			int ret = executeBatch(stmt, plan, list);
+			tableWritten(list, isKeyWhere(list.get(0), wheres));
 			for (Table t : list) {
-				int idx = 1;
-				for (Field f : fields) {
-					if (!wheres.contains(f)) {
-						setParameter(stmt, idx++, t, f);
-					}
-				}
-				for (Field f : wheres) {
-					setParameter(stmt, idx++, t, f);
-				}
-				stmt.addBatch();
-			}
-			int[] results = stmt.executeBatch();
-			int ret = 0;
-			for (int n : results) {
-				ret += n;
-			}
-			for (Table t : list) {
+				t.clearModified();
 				t.fireAfterUpdate();
 			}
 			return ret;
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
-	public void commit() throws SQLException { con.commit();}
+	//変更されたフィールドの組み合わせが同じ連続した行ごとにバッチを実行する
+	//変更のない行はupdate(Table)と同様にUPDATEせず、afterUpdateも発生しない
+	private int updateModified(List<? extends Table> list, List<Field> wheres) throws SQLException {
+		StatementPlan[] plans = new StatementPlan[list.size()];
+		List<Table> written = new ArrayList<Table>();
+		for (int i=0; i<plans.length; i++) {
+			plans[i] = list.get(i).getModifiedUpdatePlan(wheres);
+			if (plans[i] != null) {
+				written.add(list.get(i));
+			}
+		}
+		if (written.size() == 0) {
+			return 0;
+		}
+		int ret = 0;
+		int idx = 0;
+		boolean executed = false;
+		boolean success = false;
+		try {
+			while (idx < plans.length) {
+				StatementPlan plan = plans[idx];
+				int end = idx + 1;
+				while (end < plans.length && isSamePlan(plan, plans[end])) {
+					end++;
+				}
+				if (plan != null) {
+					PreparedStatement stmt = prepareStatement(plan.getSQL());
+					try {
+						ret += executeBatch(stmt, plan, list.subList(idx, end), idx, list.size());
+						executed = true;
+					} finally {
+						closeStatement(stmt);
+					}
+				}
+				idx = end;
+			}
+			success = true;
+		} finally {
+			//失敗したバッチ自体の無効化はexecuteBatchで行われる
+			if (executed && !success) {
+				writeFailed(list.get(0));
+			}
+		}
+		tableWritten(written, isKeyWhere(list.get(0), wheres));
+		for (Table t : written) {
+			t.clearModified();
+			t.fireAfterUpdate();
+		}
+		return ret;
+	}
+	
+	private static boolean isSamePlan(StatementPlan p1, StatementPlan p2) {
+		if (p1 == null || p2 == null) {
+			return p1 == p2;
+		}
+		return p1 == p2 || p1.getSQL().equals(p2.getSQL());
+	}
+	
+	public void commit() throws SQLException {
+		con.commit();
+		endTransaction();
+	}
 	
 	//RollbackのExceptionは無視する
 	public void rollback() { 
@@ -478,6 +1492,7 @@ public class DBTool {
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
+		endTransaction();
 	}
 	
 	public int delete(Table t) throws SQLException {
@@ -490,19 +1505,17 @@ public class DBTool {
 	
 	public int delete(Table t, List<Field> wheres) throws SQLException {
 		t.fireBeforeDelete();
-		String sql = t.buildDeleteStatement(wheres);
+		StatementPlan plan = t.getDeletePlan(wheres);
 		
-		PreparedStatement stmt = con.prepareStatement(sql);
+		PreparedStatement stmt = prepareStatement(plan.getSQL());
 		try {
-			int idx = 1;
-			for (Field f : wheres) {
-				setParameter(stmt, idx++, t, f);
-			}
-			int ret = stmt.executeUpdate();
+			setParameters(stmt, plan, t);
+			int ret = executeUpdate(plan.getSQL(), stmt);
+			tableWritten(t, isKeyWhere(t, wheres));
 			t.fireAfterDelete();
 			return ret;
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
@@ -518,28 +1531,18 @@ public class DBTool {
 		for (Table t : list) {
 			t.fireBeforeDelete();
 		}
-		String sql = list.get(0).buildDeleteStatement(wheres);
+		StatementPlan plan = list.get(0).getDeletePlan(wheres);
 		
-		PreparedStatement stmt = con.prepareStatement(sql);
+		PreparedStatement stmt = prepareStatement(plan.getSQL());
 		try {
-			for (Table t : list) {
-				int idx = 1;
-				for (Field f : wheres) {
-					setParameter(stmt, idx++, t, f);
-				}
-				stmt.addBatch();
-			}
-			int[] results = stmt.executeBatch();
-			int ret = 0;
-			for (int n : results) {
-				ret += n;
-			}
+			int ret = executeBatch(stmt, plan, list);
+			tableWritten(list, isKeyWhere(list.get(0), wheres));
 			for (Table t : list) {
 				t.fireAfterDelete();
 			}
 			return ret;
 		} finally {
-			stmt.close();
+			closeStatement(stmt);
 		}
 	}
 	
@@ -0,0 +1,177 @@
+package jp.co.flect.sql;
+
+import java.util.List;
+
+import jp.co.flect.sql.Table.Field;
+
+/**
+ * データベースごとに異なるSQLの方言
+ */
+public enum Dialect {
+	/** INSERT ... ON CONFLICT */
+	PostgreSQL,
+	/** INSERT ... ON DUPLICATE KEY UPDATE */
+	MySQL,
+	/** MERGE INTO ... KEY */
+	H2,
+	/** 標準SQLのMERGE。製品名からは判定されないのでsetDialectで設定します */
+	Standard
+	;
+	
+	/**
+	 * DatabaseMetaData.getDatabaseProductNameの値から方言を返します。<br>
+	 * 該当するものがない場合はIllegalArgumentExceptionをスローします。
+	 */
+	public static Dialect fromProductName(String name) {
+		String s = name == null ? "" : name.toLowerCase();
+		if (s.indexOf("postgresql") != -1) {
+			return PostgreSQL;
+		} else if (s.indexOf("mysql") != -1 || s.indexOf("mariadb") != -1) {
+			return MySQL;
+		} else if (s.equals("h2")) {
+			return H2;
+		}
+		throw new IllegalArgumentException("Unsupported database: " + name);
+	}
+	
+	/**
+	 * 「xxx = ANY(?)」で配列のパラメータを使用できるかどうかを返します。
+	 * @see ArrayParameter
+	 */
+	public boolean supportsArrayParameter() {
+		return this == PostgreSQL || this == H2;
+	}
+	
+	/**
+	 * 主キーが一致する行があればUPDATE、なければINSERTするSQLを生成します。<br>
+	 * パラメータの順序は各行ごとにcolumnsの順となり、INSERT文と同じです。
+	 * @param columns 値を設定するフィールド(主キーを含む)
+	 * @param keys 主キー
+	 * @param rows VALUES句の行数
+	 */
+	String buildUpsert(String tableName, List<Field> columns, List<Field> keys, int rows) {
+		StringBuilder buf = new StringBuilder();
+		switch (this) {
+			case PostgreSQL:
+				appendInsert(buf, "INSERT INTO ", tableName, columns, rows);
+				buf.append(" ON CONFLICT (");
+				appendNames(buf, keys, "");
+				buf.append(")");
+				if (hasUpdateColumn(columns, keys)) {
+					buf.append(" DO UPDATE SET ");
+					appendAssign(buf, columns, keys, "EXCLUDED.", "");
+				} else {
+					buf.append(" DO NOTHING");
+				}
+				break;
+			case MySQL:
+				appendInsert(buf, "INSERT INTO ", tableName, columns, rows);
+				buf.append(" ON DUPLICATE KEY UPDATE ");
+				if (hasUpdateColumn(columns, keys)) {
+					appendAssign(buf, columns, keys, "VALUES(", ")");
+				} else {
+					String name = keys.get(0).getName();
+					buf.append(name).append(" = ").append(name);
+				}
+				break;
+			case H2:
+				buf.append("MERGE INTO ")
+					.append(tableName)
+					.append(" (");
+				appendNames(buf, columns, "");
+				buf.append(") KEY (");
+				appendNames(buf, keys, "");
+				buf.append(") ");
+				appendValues(buf, columns.size(), rows);
+				break;
+			case Standard:
+				buf.append("MERGE INTO ")
+					.append(tableName)
+					.append(" USING (");
+				appendValues(buf, columns.size(), rows);
+				buf.append(") src (");
+				appendNames(buf, columns, "");
+				buf.append(") ON (");
+				for (int i=0; i<keys.size(); i++) {
+					String name = keys.get(i).getName();
+					if (i > 0) {
+						buf.append(" AND ");
+					}
+					buf.append(tableName).append(".").append(name)
+						.append(" = src.").append(name);
+				}
+				buf.append(")");
+				if (hasUpdateColumn(columns, keys)) {
+					buf.append(" WHEN MATCHED THEN UPDATE SET ");
+					appendAssign(buf, columns, keys, "src.", "");
+				}
+				buf.append(" WHEN NOT MATCHED THEN INSERT (");
+				appendNames(buf, columns, "");
+				buf.append(") VALUES (");
+				appendNames(buf, columns, "src.");
+				buf.append(")");
+				break;
+		}
+		return buf.toString();
+	}
+	
+	private static boolean hasUpdateColumn(List<Field> columns, List<Field> keys) {
+		for (Field f : columns) {
+			if (!keys.contains(f)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static void appendInsert(StringBuilder buf, String command, String tableName, List<Field> columns, int rows) {
+		buf.append(command)
+			.append(tableName)
+			.append(" (");
+		appendNames(buf, columns, "");
+		buf.append(") ");
+		appendValues(buf, columns.size(), rows);
+	}
+	
+	private static void appendNames(StringBuilder buf, List<Field> list, String prefix) {
+		for (int i=0; i<list.size(); i++) {
+			if (i > 0) {
+				buf.append(",");
+			}
+			buf.append(prefix).append(list.get(i).getName());
+		}
+	}
+	
+	private static void appendValues(StringBuilder buf, int columnCount, int rows) {
+		buf.append("VALUES");
+		for (int i=0; i<rows; i++) {
+			buf.append(i == 0 ? "(" : ",(");
+			for (int j=0; j<columnCount; j++) {
+				if (j > 0) {
+					buf.append(",");
+				}
+				buf.append("?");
+			}
+			buf.append(")");
+		}
+	}
+	
+	//主キー以外のフィールドを prefix + name + suffix の値で更新する
+	private static void appendAssign(StringBuilder buf, List<Field> columns, List<Field> keys, String prefix, String suffix) {
+		boolean first = true;
+		for (Field f : columns) {
+			if (keys.contains(f)) {
+				continue;
+			}
+			if (!first) {
+				buf.append(",");
+			}
+			buf.append(f.getName())
+				.append(" = ")
+				.append(prefix)
+				.append(f.getName())
+				.append(suffix);
+			first = false;
+		}
+	}
+}
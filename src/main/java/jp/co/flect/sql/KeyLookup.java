@@ -0,0 +1,205 @@
+package jp.co.flect.sql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.flect.sql.Condition.CompoundCondition;
+import jp.co.flect.sql.Condition.Equal;
+import jp.co.flect.sql.Condition.In;
+import jp.co.flect.sql.Condition.LogicalOp;
+import jp.co.flect.sql.Table.Field;
+
+/**
+ * 主キーの値の一覧から行を検索するクエリ<br>
+ * キーは一定の件数ごとに分割され、分割ごとにIN句、配列のパラメータ、
+ * または複合主キーの場合はORで結合した条件で検索されます。<br>
+ * 配列のパラメータの要素の型はキーの値のクラスではなく主キーの列の型から決定します。<br>
+ * パラメータ数は2のべき乗に切り上げられるので、生成されるSQLの種類は限られます。<br>
+ * TableSchemaごとに方言とパラメータの最大数の組み合わせで共有されます。
+ * @see DBTool#selectByKeys
+ */
+class KeyLookup {
+	
+	private TableSchema schema;
+	private Table prototype;
+	private Field[] keys;
+	//配列のパラメータを使用しない場合はnull
+	private String arrayType;
+	private int chunkSize;
+	
+	/** パラメータ数ごとのクエリ */
+	private Map<Integer, CompiledQuery> queries = new HashMap<Integer, CompiledQuery>();
+	
+	/**
+	 * TableSchemaに保持されたKeyLookupを返します。
+	 */
+	public static KeyLookup get(Table prototype, Dialect dialect, int maxParameters) {
+		return prototype.getSchema().getKeyLookup(prototype, dialect, maxParameters);
+	}
+	
+	/**
+	 * @param dialect 配列のパラメータに対応している場合は配列を使用します。
+	 *   複合主キーの場合、主キーの列の型に対応する配列の型がない場合、nullの場合は使用しません
+	 * @param maxParameters 1つのSQLで使用できるパラメータの最大数
+	 */
+	KeyLookup(Table prototype, Dialect dialect, int maxParameters) {
+		List<Field> list = prototype.listKeys();
+		if (list.size() == 0) {
+			throw new IllegalArgumentException("No primary key: " + prototype.getTableName());
+		}
+		this.schema = prototype.getSchema();
+		this.prototype = prototype.clone();
+		this.keys = list.toArray(new Field[list.size()]);
+		if (dialect != null && dialect.supportsArrayParameter() && this.keys.length == 1) {
+			this.arrayType = ArrayParameter.getTypeName(this.keys[0].getType());
+		}
+		int n = Math.min(maxParameters / this.keys.length, In.DEFAULT_MAX_SIZE);
+		this.chunkSize = Integer.highestOneBit(Math.max(n, 1));
+	}
+	
+	public int getChunkSize() { return this.chunkSize;}
+	
+	/**
+	 * 検索の開始前に取得し、putに渡します。RowCacheが設定されていない場合は-1
+	 */
+	public long getCacheVersion() {
+		RowCache cache = this.schema.getRowCache();
+		return cache == null ? -1 : cache.getVersion();
+	}
+	
+	/**
+	 * 正規化したキーから呼び出し元のキーへのMapを返します。<br>
+	 * 呼び出し元のキーは複合主キーの場合は値のListとなります。
+	 * @see RowCache#normalizeKey
+	 */
+	public Map<Object, Object> index(Collection<?> keyValues) {
+		Map<Object, Object> ret = new LinkedHashMap<Object, Object>();
+		for (Object o : keyValues) {
+			Object key = this.keys.length == 1 ? o : Arrays.asList(toKey(o));
+			ret.put(RowCache.normalizeKey(key), key);
+		}
+		return ret;
+	}
+	
+	/**
+	 * RowCacheに存在する行をMapに追加し、存在しなかったキーを返します。
+	 * @param index indexで生成したMap
+	 */
+	public <T extends Table> Collection<?> getCached(T prototype, Map<Object, Object> index, Map<Object, T> map) {
+		RowCache cache = this.schema.getRowCache();
+		if (cache == null) {
+			return index.values();
+		}
+		List<Object> ret = new ArrayList<Object>();
+		for (Map.Entry<Object, Object> entry : index.entrySet()) {
+			//キャッシュの行はprototypeと同じクラスのcloneの複製
+			@SuppressWarnings("unchecked")
+			T row = (T)cache.get(entry.getKey());
+			if (row == null) {
+				ret.add(entry.getValue());
+			} else {
+				map.put(entry.getValue(), row);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * キーの一覧を1回の検索で使用する件数ごとに分割します。
+	 */
+	public List<Object[]> split(Collection<?> keyValues) {
+		Object[] values = keyValues.toArray();
+		List<Object[]> ret = new ArrayList<Object[]>();
+		for (int i=0; i<values.length; i+=this.chunkSize) {
+			Object[] chunk = new Object[Math.min(this.chunkSize, values.length - i)];
+			System.arraycopy(values, i, chunk, 0, chunk.length);
+			ret.add(chunk);
+		}
+		return ret;
+	}
+	
+	/**
+	 * 分割したキーの行を検索します。
+	 */
+	public <T extends Table> List<T> select(DBTool db, T prototype, Object[] chunk) throws SQLException {
+		if (this.arrayType != null) {
+			return db.selectListUncached(getQuery(0), prototype, new ArrayParameter(this.arrayType, chunk));
+		}
+		int n = In.getBucketSize(chunk.length);
+		Object[] params = new Object[n * this.keys.length];
+		for (int i=0; i<n; i++) {
+			Object[] key = toKey(chunk[Math.min(i, chunk.length - 1)]);
+			System.arraycopy(key, 0, params, i * this.keys.length, this.keys.length);
+		}
+		return db.selectListUncached(getQuery(n), prototype, params);
+	}
+	
+	/**
+	 * 検索した行を呼び出し元のキーをキーとしてMapに追加します。<br>
+	 * RowCacheが設定されている場合はキャッシュにも追加します。
+	 * @param index indexで生成したMap
+	 * @param version 検索の開始前にgetCacheVersionで取得した値。負の場合はキャッシュに追加しません
+	 */
+	public <T extends Table> void put(Map<Object, Object> index, Map<Object, T> map, List<T> rows, long version) {
+		RowCache cache = this.schema.getRowCache();
+		for (T row : rows) {
+			Object key = RowCache.getKey(row);
+			Object requested = index.get(key);
+			map.put(requested == null ? key : requested, row);
+			if (cache != null && version >= 0) {
+				cache.put(row, version);
+			}
+		}
+	}
+	
+	private Object[] toKey(Object o) {
+		Object[] ret = null;
+		if (this.keys.length == 1) {
+			ret = new Object[] { o };
+		} else if (o instanceof Object[]) {
+			ret = (Object[])o;
+		} else if (o instanceof List) {
+			ret = ((List<?>)o).toArray();
+		}
+		if (ret == null || ret.length != this.keys.length) {
+			throw new IllegalArgumentException("Invalid key: " + o);
+		}
+		return ret;
+	}
+	
+	//nはキーの数。配列のパラメータの場合は0
+	private synchronized CompiledQuery getQuery(int n) {
+		CompiledQuery query = this.queries.get(n);
+		if (query != null) {
+			return query;
+		}
+		SelectBuilder builder = new SelectBuilder(this.prototype);
+		for (Field f : this.prototype.listFields()) {
+			builder.select(f.getName());
+		}
+		if (this.arrayType != null) {
+			builder.where(new In(this.prototype, this.keys[0].getName()).array());
+		} else if (this.keys.length == 1) {
+			builder.where(new In(this.prototype, this.keys[0].getName(), n));
+		} else {
+			CompoundCondition or = new CompoundCondition(LogicalOp.OR);
+			for (int i=0; i<n; i++) {
+				CompoundCondition and = new CompoundCondition(LogicalOp.AND);
+				for (Field f : this.keys) {
+					and.add(new Equal(this.prototype, f.getName()));
+				}
+				or.add(and);
+			}
+			builder.where(or);
+		}
+		query = builder.compile();
+		this.queries.put(n, query);
+		return query;
+	}
+}
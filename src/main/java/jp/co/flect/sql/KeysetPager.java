@@ -0,0 +1,126 @@
+package jp.co.flect.sql;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import jp.co.flect.sql.Condition.Keyset;
+
+/**
+ * キーセット(シーク)方式のページング<br>
+ * OFFSETを使用せず、前のページの最後の行のORDER BYのキーより後の行を検索するので、
+ * 何ページ目であっても検索のコストは最初のページと同じです。<br>
+ * ORDER BY句のフィールドはすべてSELECT句とprototypeのフィールドに含まれ、かつ行を一意に特定できる必要があります。
+ * GROUP BYまたは集合関数を含むクエリには使用できません。
+ * キーの値がNULLの行は正しく扱えません。<br>
+ * SQLは構築時に生成されるので、以後のSelectBuilderの変更の影響は受けません。
+ */
+public class KeysetPager<T extends Table> {
+	
+	private T prototype;
+	private int pageSize;
+	private String[] keyFields;
+	private Keyset keyset;
+	private CompiledQuery firstQuery;
+	private CompiledQuery nextQuery;
+	
+	private Object[] lastKey = null;
+	private boolean hasNext = true;
+	
+	public KeysetPager(SelectBuilder builder, T prototype, int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("pageSize: " + pageSize);
+		}
+		if (builder.isLimited()) {
+			throw new IllegalArgumentException("LIMIT and OFFSET can not be used: " + builder.toSQL());
+		}
+		if (builder.hasGroupBy()) {
+			throw new IllegalArgumentException("GROUP BY can not be used: " + builder.toSQL());
+		}
+		this.prototype = prototype;
+		this.pageSize = pageSize;
+		this.keyFields = builder.getKeyFieldNames();
+		for (String name : this.keyFields) {
+			if (!prototype.hasField(name)) {
+				throw new IllegalArgumentException("Order by field is not a field of " + prototype.getTableName() + ": " + name);
+			}
+		}
+		this.keyset = builder.getKeysetCondition();
+		//次のページの有無を判定するために1行多く検索する
+		this.firstQuery = builder.compile(null, pageSize + 1);
+		this.nextQuery = builder.compile(this.keyset, pageSize + 1);
+	}
+	
+	public int getPageSize() { return this.pageSize;}
+	
+	/**
+	 * 最初のページのクエリを返します。
+	 */
+	public CompiledQuery getFirstPageQuery() { return this.firstQuery;}
+	
+	/**
+	 * 2ページ目以降のクエリを返します。<br>
+	 * 継続条件のパラメータはSelectBuilderのパラメータの後に追加されます。
+	 */
+	public CompiledQuery getNextPageQuery() { return this.nextQuery;}
+	
+	/**
+	 * 次のページがあるかどうかを返します。
+	 */
+	public boolean hasNext() { return this.hasNext;}
+	
+	/**
+	 * 前のページの最後の行のキーの値を返します。<br>
+	 * 最初のページを検索する前はnullです。
+	 */
+	public Object[] getLastKey() { return this.lastKey;}
+	
+	/**
+	 * 前のページの最後の行のキーの値を設定します。<br>
+	 * Webアプリケーションなどでリクエストごとにページングを継続する場合に使用します。
+	 * nullの場合は最初のページから検索します。
+	 */
+	public void setLastKey(Object[] key) {
+		if (key != null && key.length != this.keyFields.length) {
+			throw new IllegalArgumentException();
+		}
+		this.lastKey = key;
+		this.hasNext = true;
+	}
+	
+	/**
+	 * 最初のページに戻ります。
+	 */
+	public void reset() {
+		setLastKey(null);
+	}
+	
+	/**
+	 * 次のページを検索します。<br>
+	 * 次のページがない場合は空のListを返します。
+	 */
+	public List<T> next(DBTool db, Object... params) throws SQLException {
+		List<T> list = null;
+		if (this.lastKey == null) {
+			list = db.selectList(this.firstQuery, this.prototype, params);
+		} else {
+			Object[] keyParams = this.keyset.getParameters(this.lastKey);
+			Object[] allParams = new Object[params.length + keyParams.length];
+			System.arraycopy(params, 0, allParams, 0, params.length);
+			System.arraycopy(keyParams, 0, allParams, params.length, keyParams.length);
+			list = db.selectList(this.nextQuery, this.prototype, allParams);
+		}
+		this.hasNext = list.size() > this.pageSize;
+		if (this.hasNext) {
+			list.remove(list.size() - 1);
+		}
+		if (list.size() > 0) {
+			T last = list.get(list.size() - 1);
+			Object[] key = new Object[this.keyFields.length];
+			for (int i=0; i<key.length; i++) {
+				key[i] = last.get(this.keyFields[i]);
+			}
+			this.lastKey = key;
+		}
+		return list;
+	}
+}
@@ -0,0 +1,292 @@
+package jp.co.flect.sql;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * SQLごとの実行回数、処理時間のヒストグラム、行数をメモリ上に集計するStatementMetrics<br>
+ * SQLはリテラルとIN句などのパラメータの数を正規化したfingerprintごとに集計されます。<br>
+ * 集計はロックを使用しないので、複数のDBToolで共有できます。
+ * 集計するSQLの種類が最大数を超えた場合、以降の新しいSQLは「(other)」にまとめられます。
+ * 最大数の判定はロックせずに行うので、複数のスレッドで同時に新しいSQLを集計した場合は
+ * 最大数をスレッド数程度まで超えることがあります。
+ */
+public class MetricsCollector implements StatementMetrics {
+	
+	/** 最大数を超えたSQLを集計するキー */
+	public static final String OTHER = "(other)";
+	
+	/** SQLとfingerprintの対応を保持する最大数。超えた場合はクリアする */
+	private static final int MAX_FINGERPRINTS = 4096;
+	
+	//VALUES(...),(...)のような同じ内容の繰り返し
+	private static final Pattern REPEATED_GROUP = Pattern.compile("(\\([^()]*\\))(?:,\\1)+");
+	//IN (?,?,?)のようなパラメータのリスト
+	private static final Pattern PARAMETER_LIST = Pattern.compile("\\(\\?(?:,\\?)+\\)");
+	
+	private int maxStatements;
+	private ConcurrentHashMap<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+	private ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<String, Entry>();
+	
+	public MetricsCollector() {
+		this(1000);
+	}
+	
+	/**
+	 * @param maxStatements 集計するSQLの種類の最大数。同時に集計を開始したSQLの分だけ超えることがあります
+	 */
+	public MetricsCollector(int maxStatements) {
+		if (maxStatements <= 0) {
+			throw new IllegalArgumentException("maxStatements: " + maxStatements);
+		}
+		this.maxStatements = maxStatements;
+	}
+	
+	public int getMaxStatements() { return this.maxStatements;}
+	
+	public void prepared(String sql, long nanos) {
+		getEntry(sql).prepare.record(nanos);
+	}
+	
+	public void executed(String sql, long nanos, int count) {
+		Entry entry = getEntry(sql);
+		entry.execute.record(nanos);
+		if (count > 0) {
+			entry.rowsAffected.addAndGet(count);
+		}
+	}
+	
+	public void batchExecuted(String sql, long nanos, int batchSize, int count) {
+		Entry entry = getEntry(sql);
+		entry.execute.record(nanos);
+		entry.batchCount.incrementAndGet();
+		entry.batchRows.addAndGet(batchSize);
+		if (count > 0) {
+			entry.rowsAffected.addAndGet(count);
+		}
+	}
+	
+	public void fetched(String sql, long nanos, int rows) {
+		Entry entry = getEntry(sql);
+		entry.fetch.record(nanos);
+		if (rows > 0) {
+			entry.rowsReturned.addAndGet(rows);
+		}
+	}
+	
+	/**
+	 * 集計したSQLごとの統計を処理時間の合計の降順で返します。
+	 */
+	public List<StatementStats> getSnapshot() {
+		List<StatementStats> list = new ArrayList<StatementStats>(this.map.size());
+		for (Entry entry : this.map.values()) {
+			list.add(entry.snapshot());
+		}
+		Collections.sort(list, new Comparator<StatementStats>() {
+			public int compare(StatementStats s1, StatementStats s2) {
+				long n1 = s1.getTotalNanos();
+				long n2 = s2.getTotalNanos();
+				return n1 > n2 ? -1 : n1 < n2 ? 1 : 0;
+			}
+		});
+		return list;
+	}
+	
+	/**
+	 * 指定のSQLの統計を返します。実行されていない場合はnullを返します。
+	 */
+	public StatementStats getSnapshot(String sql) {
+		Entry entry = this.map.get(getFingerprint(sql));
+		return entry == null ? null : entry.snapshot();
+	}
+	
+	/**
+	 * 集計をクリアします。
+	 */
+	public void reset() {
+		this.map.clear();
+	}
+	
+	/**
+	 * 統計をタブ区切りのテキストで出力します。<br>
+	 * 1行目はヘッダで、時間の単位はマイクロ秒です。
+	 */
+	public void export(Appendable out) throws IOException {
+		out.append("sql\texecutions\trowsReturned\trowsAffected\tbatches\tbatchRows");
+		String[] names = { "prepare", "execute", "fetch" };
+		for (String name : names) {
+			out.append("\t").append(name).append("Total")
+				.append("\t").append(name).append("Avg")
+				.append("\t").append(name).append("P50")
+				.append("\t").append(name).append("P99")
+				.append("\t").append(name).append("Max");
+		}
+		out.append("\n");
+		for (StatementStats stats : getSnapshot()) {
+			out.append(stats.getSQL().replace('\t', ' '))
+				.append("\t").append(Long.toString(stats.getExecuteCount()))
+				.append("\t").append(Long.toString(stats.getRowsReturned()))
+				.append("\t").append(Long.toString(stats.getRowsAffected()))
+				.append("\t").append(Long.toString(stats.getBatchCount()))
+				.append("\t").append(Long.toString(stats.getBatchRows()));
+			StatementStats.Timing[] timings = { stats.getPrepare(), stats.getExecute(), stats.getFetch() };
+			for (StatementStats.Timing t : timings) {
+				out.append("\t").append(Long.toString(t.getTotalNanos() / 1000))
+					.append("\t").append(Long.toString(t.getAverageNanos() / 1000))
+					.append("\t").append(Long.toString(t.getPercentileNanos(50) / 1000))
+					.append("\t").append(Long.toString(t.getPercentileNanos(99) / 1000))
+					.append("\t").append(Long.toString(t.getMaxNanos() / 1000));
+			}
+			out.append("\n");
+		}
+	}
+	
+	private Entry getEntry(String sql) {
+		String key = getFingerprint(sql);
+		Entry entry = this.map.get(key);
+		if (entry == null) {
+			if (this.map.size() >= this.maxStatements) {
+				key = OTHER;
+				entry = this.map.get(key);
+				if (entry != null) {
+					return entry;
+				}
+			}
+			Entry newEntry = new Entry(key);
+			entry = this.map.putIfAbsent(key, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		}
+		return entry;
+	}
+	
+	private String getFingerprint(String sql) {
+		String ret = this.fingerprints.get(sql);
+		if (ret == null) {
+			ret = fingerprint(sql);
+			//リテラルを含むSQLが多い場合でも新しいSQLをキャッシュできるようにクリアする
+			if (this.fingerprints.size() >= MAX_FINGERPRINTS) {
+				this.fingerprints.clear();
+			}
+			this.fingerprints.put(sql, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * SQLのリテラルを?に置き換え、空白を正規化し、
+	 * パラメータのリストと複数行のVALUES句を1つにまとめた文字列を返します。<br>
+	 * 例えば「WHERE A IN (?, ?, ?) AND B = 'x'」は「WHERE A IN (?,...) AND B = ?」になります。
+	 */
+	public static String fingerprint(String sql) {
+		int len = sql.length();
+		StringBuilder buf = new StringBuilder(len);
+		boolean space = false;
+		for (int i=0; i<len; i++) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+				continue;
+			}
+			if (space) {
+				char prev = buf.length() == 0 ? '(' : buf.charAt(buf.length() - 1);
+				if (prev != '(' && prev != ',' && c != ')' && c != ',') {
+					buf.append(' ');
+				}
+				space = false;
+			}
+			if (c == '\'') {
+				//''はエスケープされた'
+				i++;
+				while (i < len) {
+					if (sql.charAt(i) == '\'') {
+						if (i + 1 < len && sql.charAt(i + 1) == '\'') {
+							i++;
+						} else {
+							break;
+						}
+					}
+					i++;
+				}
+				buf.append('?');
+			} else if (c == '"') {
+				int end = sql.indexOf('"', i + 1);
+				end = end == -1 ? len - 1 : end;
+				buf.append(sql, i, end + 1);
+				i = end;
+			} else if (Character.isDigit(c) && !isIdentifierPart(buf)) {
+				while (i + 1 < len && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) {
+					i++;
+				}
+				buf.append('?');
+			} else {
+				buf.append(c);
+			}
+		}
+		String ret = REPEATED_GROUP.matcher(buf).replaceAll("$1,...");
+		return PARAMETER_LIST.matcher(ret).replaceAll("(?,...)");
+	}
+	
+	private static boolean isIdentifierPart(StringBuilder buf) {
+		if (buf.length() == 0) {
+			return false;
+		}
+		char c = buf.charAt(buf.length() - 1);
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+	
+	private static class Histogram {
+		
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong total = new AtomicLong();
+		private AtomicLong max = new AtomicLong();
+		private AtomicLongArray buckets = new AtomicLongArray(StatementStats.Timing.BUCKET_COUNT);
+		
+		public void record(long nanos) {
+			this.count.incrementAndGet();
+			this.total.addAndGet(nanos);
+			this.buckets.incrementAndGet(StatementStats.Timing.getBucketIndex(nanos));
+			long m = this.max.get();
+			while (nanos > m && !this.max.compareAndSet(m, nanos)) {
+				m = this.max.get();
+			}
+		}
+		
+		public StatementStats.Timing snapshot() {
+			long[] values = new long[this.buckets.length()];
+			for (int i=0; i<values.length; i++) {
+				values[i] = this.buckets.get(i);
+			}
+			return new StatementStats.Timing(this.count.get(), this.total.get(), this.max.get(), values);
+		}
+	}
+	
+	private static class Entry {
+		
+		public String sql;
+		public Histogram prepare = new Histogram();
+		public Histogram execute = new Histogram();
+		public Histogram fetch = new Histogram();
+		public AtomicLong rowsReturned = new AtomicLong();
+		public AtomicLong rowsAffected = new AtomicLong();
+		public AtomicLong batchCount = new AtomicLong();
+		public AtomicLong batchRows = new AtomicLong();
+		
+		public Entry(String sql) {
+			this.sql = sql;
+		}
+		
+		public StatementStats snapshot() {
+			return new StatementStats(this.sql, this.prepare.snapshot(), this.execute.snapshot(), this.fetch.snapshot(),
+				this.rowsReturned.get(), this.rowsAffected.get(), this.batchCount.get(), this.batchRows.get());
+		}
+	}
+}
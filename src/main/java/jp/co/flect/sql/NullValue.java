@@ -0,0 +1,48 @@
+package jp.co.flect.sql;
+
+import java.sql.Types;
+
+/**
+ * SQLのデータ型を指定したNULLパラメータ<br>
+ * DBToolのパラメータにnullを指定した場合はParameterMetaDataからデータ型を取得しますが、
+ * このクラスを使用した場合はDBへの問い合わせなしで指定のデータ型でsetNullされます。
+ */
+public final class NullValue {
+	
+	public static final NullValue VARCHAR = new NullValue(Types.VARCHAR);
+	public static final NullValue INTEGER = new NullValue(Types.INTEGER);
+	public static final NullValue BIGINT = new NullValue(Types.BIGINT);
+	public static final NullValue DOUBLE = new NullValue(Types.DOUBLE);
+	public static final NullValue NUMERIC = new NullValue(Types.NUMERIC);
+	public static final NullValue BOOLEAN = new NullValue(Types.BOOLEAN);
+	public static final NullValue DATE = new NullValue(Types.DATE);
+	public static final NullValue TIMESTAMP = new NullValue(Types.TIMESTAMP);
+	public static final NullValue BINARY = new NullValue(Types.BINARY);
+	
+	private int sqlType;
+	
+	/**
+	 * @param sqlType java.sql.Typesの値
+	 */
+	public NullValue(int sqlType) {
+		this.sqlType = sqlType;
+	}
+	
+	/**
+	 * java.sql.Typesの値を返します。
+	 */
+	public int getSQLType() { return this.sqlType;}
+	
+	public boolean equals(Object o) {
+		return o instanceof NullValue && ((NullValue)o).sqlType == sqlType;
+	}
+	
+	public int hashCode() {
+		return this.sqlType;
+	}
+	
+	@Override
+	public String toString() {
+		return "NULL";
+	}
+}
@@ -0,0 +1,414 @@
+package jp.co.flect.sql;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jp.co.flect.sql.Condition.CompoundCondition;
+import jp.co.flect.sql.Condition.GreaterEqual;
+import jp.co.flect.sql.Condition.IsNull;
+import jp.co.flect.sql.Condition.LessThan;
+import jp.co.flect.sql.Condition.LogicalOp;
+import jp.co.flect.sql.SelectBuilder.Aggregate;
+import jp.co.flect.sql.SelectBuilder.Column;
+import jp.co.flect.sql.SelectBuilder.Select;
+
+/**
+ * SelectBuilderの検索を数値の列の範囲で分割し、複数のConnectionで並行して読み込むクラス<br>
+ * 各範囲の検索は既存のWHERE句に「列 &gt;= ? AND 列 &lt; ?」の条件を追加して実行されます。
+ * 列がNULLを許可する場合は「列 IS NULL」の範囲が最後に追加されます。
+ * MIN、MAXが取得できない場合は分割せずに1つの検索で読み込みます。<br>
+ * 読み込まれた行はexecuteを呼び出したスレッドでRowHandlerに渡されます。<br>
+ * Orderedがtrueの場合は範囲の順に行を渡すので、SelectBuilderに分割する列のORDER BYを指定すると
+ * 全体がその順になります。falseの場合は読み込まれた順に渡されます。<br>
+ * LIMIT、OFFSET、DISTINCT、GROUP BY、集合関数を含むSelectBuilderは分割できません。
+ */
+public class ParallelScan<T extends Table> {
+	
+	//各範囲の終了を表すマーカー
+	private static final Object END = new Object();
+	
+	private ConnectionPool pool;
+	private SelectBuilder builder;
+	private T prototype;
+	private Selectable table;
+	private String column;
+	
+	private int partitions = 4;
+	private boolean ordered = false;
+	private int queueSize = 1000;
+	private Long min = null;
+	private Long max = null;
+	private ExecutorService executor = null;
+	
+	public ParallelScan(ConnectionPool pool, SelectBuilder builder, T prototype, String column) {
+		this(pool, builder, prototype, null, column);
+	}
+	
+	public ParallelScan(ConnectionPool pool, SelectBuilder builder, T prototype, Selectable table, String column) {
+		if (builder.isLimited() || builder.isGrouped()) {
+			throw new IllegalArgumentException("Can not partition: " + builder.toSQL());
+		}
+		this.pool = pool;
+		this.builder = builder;
+		this.prototype = prototype;
+		this.table = table;
+		this.column = column;
+	}
+	
+	/**
+	 * 分割数を返します。
+	 */
+	public int getPartitions() { return this.partitions;}
+	
+	/**
+	 * 分割数を設定します。(デフォルト4)<br>
+	 * 各範囲のConnectionは検索の開始前にexecuteを呼び出したスレッドでConnectionPoolからまとめて取得し、
+	 * 各範囲の検索の終了時に返却します。
+	 * 分割数はConnectionPoolの最大数までに制限されます。
+	 */
+	public void setPartitions(int n) {
+		if (n <= 0) {
+			throw new IllegalArgumentException("partitions: " + n);
+		}
+		this.partitions = n;
+	}
+	
+	/**
+	 * 範囲の順に行を渡すかどうかを返します。
+	 */
+	public boolean isOrdered() { return this.ordered;}
+	
+	/**
+	 * 範囲の順に行を渡すかどうかを設定します。(デフォルトfalse)
+	 */
+	public void setOrdered(boolean b) { this.ordered = b;}
+	
+	/**
+	 * 範囲ごとに読み込んで保持する行数の上限を返します。
+	 */
+	public int getQueueSize() { return this.queueSize;}
+	
+	/**
+	 * 範囲ごとに読み込んで保持する行数の上限を設定します。(デフォルト1000)<br>
+	 * 上限に達した範囲の読み込みはRowHandlerが行を処理するまで待機します。
+	 */
+	public void setQueueSize(int n) { this.queueSize = n;}
+	
+	/**
+	 * 分割する列の値の範囲を設定します。<br>
+	 * 設定しない場合はMIN、MAXを検索して範囲を決定します。<br>
+	 * 範囲外の値の行は最初または最後の範囲に含まれます。
+	 */
+	public void setRange(long min, long max) {
+		if (min > max) {
+			throw new IllegalArgumentException(min + " > " + max);
+		}
+		this.min = min;
+		this.max = max;
+	}
+	
+	/**
+	 * 読み込みに使用するExecutorServiceを設定します。<br>
+	 * 設定しない場合はexecuteごとに分割数のスレッドが生成されます。
+	 */
+	public void setExecutor(ExecutorService executor) { this.executor = executor;}
+	
+	/**
+	 * 並行して検索し、各行をRowHandlerに渡します。<br>
+	 * RowHandlerがfalseを返した場合は残りの検索を中止します。
+	 * @return RowHandlerに渡した行数
+	 */
+	public int execute(DBTool.RowHandler<? super T> handler, Object... params) throws SQLException {
+		int max = Math.min(this.partitions, this.pool.getMaxSize());
+		List<Condition> conds = new ArrayList<Condition>();
+		List<Object[]> condParams = new ArrayList<Object[]>();
+		//範囲ごとのDBToolはタスクの投入前にすべて取得する
+		//タスク内で取得すると、共有されたプールでは先の範囲がConnectionを待つ間に
+		//後の範囲がConnectionを保持したままキューの空きを待って停止する
+		List<DBTool> dbs = new ArrayList<DBTool>();
+		try {
+			DBTool db = this.pool.getDBTool();
+			dbs.add(db);
+			long[] range = max > 1 ? resolveRange(db, params) : null;
+			if (range != null) {
+				boolean nullable = isNullable(db);
+				long[] bounds = calcBounds(range[0], range[1], nullable ? max - 1 : max);
+				if (bounds.length > 0) {
+					addRanges(conds, condParams, bounds);
+					if (nullable) {
+						conds.add(new IsNull(this.table, this.column));
+						condParams.add(new Object[0]);
+					}
+				}
+			}
+			if (conds.size() == 0) {
+				conds.add(null);
+				condParams.add(new Object[0]);
+			}
+			while (dbs.size() < conds.size()) {
+				dbs.add(this.pool.getDBTool());
+			}
+		} catch (SQLException e) {
+			closeAll(dbs, 0);
+			throw e;
+		} catch (RuntimeException e) {
+			closeAll(dbs, 0);
+			throw e;
+		}
+		int n = conds.size();
+		
+		ExecutorService es = this.executor;
+		boolean ownExecutor = es == null;
+		final Scan scan = new Scan(n);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			if (ownExecutor) {
+				es = Executors.newFixedThreadPool(n, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ParallelScan");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			for (int i=0; i<n; i++) {
+				Condition cond = conds.get(i);
+				Object[] rangeParams = condParams.get(i);
+				CompiledQuery query = cond == null ? this.builder.compile() : this.builder.compile(cond);
+				Object[] allParams = new Object[params.length + rangeParams.length];
+				System.arraycopy(params, 0, allParams, 0, params.length);
+				System.arraycopy(rangeParams, 0, allParams, params.length, rangeParams.length);
+				futures.add(es.submit(scan.createTask(i, dbs.get(i), query, allParams)));
+			}
+			return scan.drain(handler);
+		} finally {
+			scan.cancel();
+			//投入できなかったタスクのDBToolはここで返却する
+			closeAll(dbs, futures.size());
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (Exception e) {
+					//エラーはdrainで通知済み
+				}
+			}
+			if (ownExecutor && es != null) {
+				es.shutdown();
+			}
+		}
+	}
+	
+	private static void closeAll(List<DBTool> dbs, int from) {
+		for (int i=from; i<dbs.size(); i++) {
+			dbs.get(i).close();
+		}
+	}
+	
+	private void addRanges(List<Condition> conds, List<Object[]> condParams, long[] bounds) {
+		int n = bounds.length + 1;
+		for (int i=0; i<n; i++) {
+			if (i == 0) {
+				conds.add(new LessThan(this.table, this.column));
+				condParams.add(new Object[] { bounds[0] });
+			} else if (i == n - 1) {
+				conds.add(new GreaterEqual(this.table, this.column));
+				condParams.add(new Object[] { bounds[i - 1] });
+			} else {
+				conds.add(new CompoundCondition(LogicalOp.AND, new GreaterEqual(this.table, this.column), new LessThan(this.table, this.column)));
+				condParams.add(new Object[] { bounds[i - 1], bounds[i] });
+			}
+		}
+	}
+	
+	//MIN、MAXの検索。行がない場合や値がNULLの場合はnull
+	private long[] resolveRange(DBTool db, Object... params) throws SQLException {
+		if (this.min != null && this.max != null) {
+			return new long[] { this.min.longValue(), this.max.longValue() };
+		}
+		Column col = new Column(this.table, this.column);
+		List<Select> selects = Arrays.<Select>asList(new Aggregate("MIN", col), new Aggregate("MAX", col));
+		CompiledQuery query = this.builder.compile(selects, null);
+		return db.create(query.getSQL(), new DBTool.Creator<long[]>() {
+			public long[] create(ResultSet rs) throws SQLException {
+				if (!rs.next()) {
+					return null;
+				}
+				long n1 = rs.getLong(1);
+				if (rs.wasNull()) {
+					return null;
+				}
+				long n2 = rs.getLong(2);
+				if (rs.wasNull()) {
+					return null;
+				}
+				return new long[] { n1, n2 };
+			}
+		}, query.getParameters(params));
+	}
+	
+	//列がNOT NULLと確認できない場合はtrue
+	private boolean isNullable(DBTool db) throws SQLException {
+		Selectable t = this.table != null ? this.table : this.builder.searchTable(this.column);
+		if (!(t instanceof Table)) {
+			return true;
+		}
+		String tableName = ((Table)t).getTableName();
+		DatabaseMetaData meta = db.getConnection().getMetaData();
+		String[][] names = {
+			{ tableName, this.column },
+			{ tableName.toUpperCase(), this.column.toUpperCase() },
+			{ tableName.toLowerCase(), this.column.toLowerCase() }
+		};
+		for (String[] name : names) {
+			ResultSet rs = meta.getColumns(null, null, name[0], name[1]);
+			try {
+				if (rs.next()) {
+					return rs.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls;
+				}
+			} finally {
+				rs.close();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * minからmaxまでをn個の範囲に分割する境界値を返します。<br>
+	 * 範囲の数は値の数より多くはなりません。
+	 */
+	static long[] calcBounds(long min, long max, int n) {
+		long span = max - min + 1;
+		if (span <= 0) {
+			//オーバーフロー
+			throw new IllegalArgumentException("Range too large: " + min + " - " + max);
+		}
+		if (n > span) {
+			n = (int)span;
+		}
+		long step = span / n + (span % n == 0 ? 0 : 1);
+		List<Long> list = new ArrayList<Long>();
+		for (int i=1; i<n; i++) {
+			long b = min + step * i;
+			if (b > max) {
+				break;
+			}
+			list.add(b);
+		}
+		long[] ret = new long[list.size()];
+		for (int i=0; i<ret.length; i++) {
+			ret[i] = list.get(i);
+		}
+		return ret;
+	}
+	
+	/**
+	 * 1回のexecuteの状態
+	 */
+	private class Scan {
+		
+		private List<BlockingQueue<Object>> queues;
+		private volatile boolean cancelled = false;
+		
+		public Scan(int n) {
+			this.queues = new ArrayList<BlockingQueue<Object>>(n);
+			//順序が不要な場合は1つのキューを共有する
+			BlockingQueue<Object> queue = ordered ? null : new ArrayBlockingQueue<Object>(queueSize);
+			for (int i=0; i<n; i++) {
+				this.queues.add(ordered ? new ArrayBlockingQueue<Object>(queueSize) : queue);
+			}
+		}
+		
+		//dbはタスクの終了時に返却する
+		public Runnable createTask(int idx, final DBTool db, final CompiledQuery query, final Object[] params) {
+			final BlockingQueue<Object> queue = this.queues.get(idx);
+			return new Runnable() {
+				public void run() {
+					Object last = END;
+					try {
+						db.selectEach(query, prototype, new DBTool.RowHandler<T>() {
+							public boolean handle(T row) throws SQLException {
+								return put(queue, row);
+							}
+						}, params);
+					} catch (Throwable e) {
+						last = e;
+					} finally {
+						db.close();
+					}
+					put(queue, last);
+				}
+			};
+		}
+		
+		//キャンセルされた場合はfalse
+		private boolean put(BlockingQueue<Object> queue, Object o) {
+			try {
+				while (!this.cancelled) {
+					if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				this.cancelled = true;
+			}
+			return false;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public int drain(DBTool.RowHandler<? super T> handler) throws SQLException {
+			int cnt = 0;
+			int remain = this.queues.size();
+			int idx = 0;
+			try {
+				while (remain > 0) {
+					BlockingQueue<Object> queue = this.queues.get(ordered ? idx : 0);
+					Object o = queue.take();
+					if (o == END) {
+						remain--;
+						idx++;
+					} else if (o instanceof Throwable) {
+						throwError((Throwable)o);
+					} else {
+						cnt++;
+						if (!handler.handle((T)o)) {
+							break;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			return cnt;
+		}
+		
+		private void throwError(Throwable e) throws SQLException {
+			if (e instanceof IllegalStateException && e.getCause() instanceof SQLException) {
+				e = e.getCause();
+			}
+			if (e instanceof SQLException) {
+				throw (SQLException)e;
+			} else if (e instanceof RuntimeException) {
+				throw (RuntimeException)e;
+			} else if (e instanceof Error) {
+				throw (Error)e;
+			}
+			throw new IllegalStateException(e);
+		}
+		
+		public void cancel() {
+			this.cancelled = true;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package jp.co.flect.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * PreparedStatementに特定のクラスの値を設定するインターフェース<br>
+ * ParameterBindersに登録して使用します。
+ */
+public interface ParameterBinder {
+	
+	/**
+	 * 指定の位置(1から開始)に値を設定します。
+	 * @return 使用したパラメータ(?)の数。配列の場合は要素数
+	 */
+	public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException;
+}
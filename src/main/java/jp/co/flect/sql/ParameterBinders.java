@@ -0,0 +1,309 @@
+package jp.co.flect.sql;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * クラスごとのParameterBinderの登録先<br>
+ * 値のクラスに対応するParameterBinderは最初の使用時に解決され、以後はキャッシュされます。<br>
+ * 登録されていないクラスの場合はスーパークラス、インターフェースの順に検索します。<br>
+ * 配列の場合は要素ごとに展開して設定します。ただしbyte[]はバイナリとして1つのパラメータに設定します。
+ */
+public final class ParameterBinders {
+	
+	private static final ConcurrentHashMap<Class<?>, ParameterBinder> REGISTERED = new ConcurrentHashMap<Class<?>, ParameterBinder>();
+	//registerで置き換える。置き換え前のMapに解決した結果は破棄される
+	private static volatile ConcurrentHashMap<Class<?>, ParameterBinder> resolved = new ConcurrentHashMap<Class<?>, ParameterBinder>();
+	
+	static {
+		REGISTERED.put(String.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setString(idx, (String)value);
+				return 1;
+			}
+		});
+		REGISTERED.put(Integer.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setInt(idx, ((Integer)value).intValue());
+				return 1;
+			}
+		});
+		REGISTERED.put(Long.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setLong(idx, ((Long)value).longValue());
+				return 1;
+			}
+		});
+		REGISTERED.put(Short.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setShort(idx, ((Short)value).shortValue());
+				return 1;
+			}
+		});
+		REGISTERED.put(Byte.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setByte(idx, ((Byte)value).byteValue());
+				return 1;
+			}
+		});
+		REGISTERED.put(Double.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setDouble(idx, ((Double)value).doubleValue());
+				return 1;
+			}
+		});
+		REGISTERED.put(Float.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setFloat(idx, ((Float)value).floatValue());
+				return 1;
+			}
+		});
+		REGISTERED.put(Boolean.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setBoolean(idx, ((Boolean)value).booleanValue());
+				return 1;
+			}
+		});
+		REGISTERED.put(Character.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setString(idx, value.toString());
+				return 1;
+			}
+		});
+		REGISTERED.put(BigDecimal.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setBigDecimal(idx, (BigDecimal)value);
+				return 1;
+			}
+		});
+		REGISTERED.put(BigInteger.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setBigDecimal(idx, new BigDecimal((BigInteger)value));
+				return 1;
+			}
+		});
+		REGISTERED.put(java.sql.Date.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setDate(idx, (java.sql.Date)value);
+				return 1;
+			}
+		});
+		REGISTERED.put(Time.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setTime(idx, (Time)value);
+				return 1;
+			}
+		});
+		REGISTERED.put(Timestamp.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setTimestamp(idx, (Timestamp)value);
+				return 1;
+			}
+		});
+		REGISTERED.put(java.util.Date.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setTimestamp(idx, new Timestamp(((java.util.Date)value).getTime()));
+				return 1;
+			}
+		});
+		REGISTERED.put(byte[].class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setBytes(idx, (byte[])value);
+				return 1;
+			}
+		});
+		REGISTERED.put(ArrayParameter.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				ArrayParameter array = (ArrayParameter)value;
+				stmt.setArray(idx, stmt.getConnection().createArrayOf(array.getTypeName(), array.getValues()));
+				return 1;
+			}
+		});
+		REGISTERED.put(NullValue.class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setNull(idx, ((NullValue)value).getSQLType());
+				return 1;
+			}
+		});
+		
+		//setObjectでそのまま渡すクラス
+		ParameterBinder objectBinder = new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				stmt.setObject(idx, value);
+				return 1;
+			}
+		};
+		REGISTERED.put(UUID.class, objectBinder);
+		//java.timeのクラスはJDBC4.2以降のドライバでsetObjectに対応
+		String[] timeClasses = {
+			"java.time.LocalDate", 
+			"java.time.LocalTime", 
+			"java.time.LocalDateTime", 
+			"java.time.OffsetDateTime"
+		};
+		for (String name : timeClasses) {
+			try {
+				REGISTERED.put(Class.forName(name), objectBinder);
+			} catch (ClassNotFoundException e) {
+				//Java8より前
+			}
+		}
+		
+		REGISTERED.put(int[].class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				int[] array = (int[])value;
+				for (int i=0; i<array.length; i++) {
+					stmt.setInt(idx + i, array[i]);
+				}
+				return array.length;
+			}
+		});
+		REGISTERED.put(long[].class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				long[] array = (long[])value;
+				for (int i=0; i<array.length; i++) {
+					stmt.setLong(idx + i, array[i]);
+				}
+				return array.length;
+			}
+		});
+		REGISTERED.put(short[].class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				short[] array = (short[])value;
+				for (int i=0; i<array.length; i++) {
+					stmt.setShort(idx + i, array[i]);
+				}
+				return array.length;
+			}
+		});
+		REGISTERED.put(double[].class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				double[] array = (double[])value;
+				for (int i=0; i<array.length; i++) {
+					stmt.setDouble(idx + i, array[i]);
+				}
+				return array.length;
+			}
+		});
+		REGISTERED.put(float[].class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				float[] array = (float[])value;
+				for (int i=0; i<array.length; i++) {
+					stmt.setFloat(idx + i, array[i]);
+				}
+				return array.length;
+			}
+		});
+		REGISTERED.put(boolean[].class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				boolean[] array = (boolean[])value;
+				for (int i=0; i<array.length; i++) {
+					stmt.setBoolean(idx + i, array[i]);
+				}
+				return array.length;
+			}
+		});
+		REGISTERED.put(char[].class, new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				char[] array = (char[])value;
+				for (int i=0; i<array.length; i++) {
+					stmt.setString(idx + i, String.valueOf(array[i]));
+				}
+				return array.length;
+			}
+		});
+	}
+	
+	/**
+	 * Objectの配列を要素ごとに展開する<br>
+	 * DBToolはnullの要素のデータ型をParameterMetaDataから解決するので、このBinderを使用せずに展開します。
+	 */
+	private static final ParameterBinder OBJECT_ARRAY_BINDER = new ParameterBinder() {
+		public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+			Object[] array = (Object[])value;
+			int n = 0;
+			for (Object o : array) {
+				if (o == null) {
+					stmt.setNull(idx + n, Types.NULL);
+					n++;
+				} else {
+					n += get(o.getClass()).bind(stmt, idx + n, o);
+				}
+			}
+			return n;
+		}
+	};
+	
+	private ParameterBinders() {
+	}
+	
+	/**
+	 * 指定のクラスのParameterBinderを登録します。<br>
+	 * 登録済みのクラスの場合は置き換えます。
+	 */
+	public static void register(Class<?> clazz, ParameterBinder binder) {
+		REGISTERED.put(clazz, binder);
+		//clearすると並行したgetが登録前の結果をclear後にputする可能性がある
+		resolved = new ConcurrentHashMap<Class<?>, ParameterBinder>();
+	}
+	
+	/**
+	 * 指定のクラスの値を設定するParameterBinderを返します。<br>
+	 * 対応するParameterBinderがない場合は、使用時にIllegalStateExceptionをスローするParameterBinderを返します。
+	 */
+	public static ParameterBinder get(Class<?> clazz) {
+		ConcurrentHashMap<Class<?>, ParameterBinder> map = resolved;
+		ParameterBinder ret = map.get(clazz);
+		if (ret == null) {
+			ret = resolve(clazz);
+			map.put(clazz, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * 値をPreparedStatementに設定して使用したパラメータの数を返します。
+	 */
+	public static int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+		return get(value.getClass()).bind(stmt, idx, value);
+	}
+	
+	/**
+	 * 要素ごとに展開される配列(専用のParameterBinderが登録されていないObjectの配列)の場合はtrueを返します。
+	 */
+	static boolean isExpandedArray(Object value) {
+		return value instanceof Object[] && get(value.getClass()) == OBJECT_ARRAY_BINDER;
+	}
+	
+	private static ParameterBinder resolve(final Class<?> clazz) {
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			ParameterBinder ret = REGISTERED.get(c);
+			if (ret != null) {
+				return ret;
+			}
+		}
+		if (clazz.isArray() && !clazz.getComponentType().isPrimitive()) {
+			return OBJECT_ARRAY_BINDER;
+		}
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			for (Class<?> intf : c.getInterfaces()) {
+				ParameterBinder ret = REGISTERED.get(intf);
+				if (ret != null) {
+					return ret;
+				}
+			}
+		}
+		return new ParameterBinder() {
+			public int bind(PreparedStatement stmt, int idx, Object value) throws SQLException {
+				throw new IllegalStateException(clazz.toString());
+			}
+		};
+	}
+}
@@ -0,0 +1,265 @@
+package jp.co.flect.sql;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.co.flect.sql.Table.Field;
+
+/**
+ * SelectBuilderの検索結果をSQLとパラメータをキーとして保持するキャッシュ<br>
+ * DBTool.setQueryCacheで設定すると、SelectBuilderまたはCompiledQueryを使用した
+ * select、selectListの結果がキャッシュされます。<br>
+ * 結果は推定のメモリサイズの合計が最大値を超えないように最も古く参照されたものから削除され、
+ * 有効期間を過ぎたものは参照時に削除されます。<br>
+ * 各結果はSelectBuilderのFROM句、JOIN句、副問合せで参照しているテーブル名と関連付けられ、
+ * DBToolでそのテーブルにINSERT、UPDATE、DELETE、UPSERTした時点で無効化されます。
+ * SQLの直接実行や他のプロセスでの変更は検出できないので、invalidateを呼び出すか有効期間で調整してください。<br>
+ * 結果の行は複製して返されるので、変更してもキャッシュには影響しません。<br>
+ * 複数のDBToolで共有できます。
+ */
+public class QueryCache {
+	
+	private long maxBytes;
+	private long ttl;
+	private long bytes = 0;
+	private LinkedHashMap<Key, CacheEntry> map = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true);
+	/** テーブル名ごとのキー */
+	private Map<String, Set<Key>> tableMap = new HashMap<String, Set<Key>>();
+	
+	/** 無効化の回数 */
+	private long version = 0;
+	
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+	
+	/**
+	 * @param maxBytes 保持する結果の推定サイズの合計の最大値(バイト)
+	 * @param ttl 有効期間(ミリ秒)。0以下の場合は無期限
+	 */
+	public QueryCache(long maxBytes, long ttl) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+	}
+	
+	public long getMaxBytes() { return this.maxBytes;}
+	public long getTimeToLive() { return this.ttl;}
+	
+	public synchronized int size() { return this.map.size();}
+	public synchronized long getBytes() { return this.bytes;}
+	public synchronized long getHitCount() { return this.hitCount;}
+	public synchronized long getMissCount() { return this.missCount;}
+	public synchronized long getEvictionCount() { return this.evictionCount;}
+	
+	/**
+	 * 指定のテーブルを参照している結果を削除します。
+	 */
+	public synchronized void invalidate(String tableName) {
+		this.version++;
+		Set<Key> keys = this.tableMap.get(normalize(tableName));
+		if (keys == null) {
+			return;
+		}
+		for (Key key : new ArrayList<Key>(keys)) {
+			remove(key);
+		}
+	}
+	
+	/**
+	 * すべての結果を削除します。
+	 */
+	public synchronized void clear() {
+		this.version++;
+		this.map.clear();
+		this.tableMap.clear();
+		this.bytes = 0;
+	}
+	
+	/**
+	 * 検索の開始前に取得し、putに渡します。<br>
+	 * 検索中に無効化された場合、その結果はキャッシュされません。
+	 */
+	synchronized long getVersion() { return this.version;}
+	
+	/**
+	 * キャッシュされた結果の複製を返します。存在しない場合はnullを返します。
+	 */
+	List<Table> get(Class<?> type, String sql, Object[] params, boolean single) {
+		Key key = new Key(type, sql, params, single);
+		CacheEntry entry = null;
+		synchronized (this) {
+			entry = this.map.get(key);
+			if (entry != null && entry.isExpired()) {
+				remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				this.missCount++;
+				return null;
+			}
+			this.hitCount++;
+		}
+		List<Table> ret = new ArrayList<Table>(entry.rows.size());
+		for (Table t : entry.rows) {
+			ret.add(RowCache.copy(t));
+		}
+		return ret;
+	}
+	
+	/**
+	 * 結果の複製をキャッシュに追加します。
+	 * @param tableNames 参照しているテーブル名
+	 * @param version 検索の開始前にgetVersionで取得した値
+	 */
+	void put(Class<?> type, String sql, Object[] params, boolean single, List<String> tableNames, List<? extends Table> rows, long version) {
+		Key key = new Key(type, sql, params, single);
+		List<Table> list = new ArrayList<Table>(rows.size());
+		long size = key.estimateSize();
+		for (Table t : rows) {
+			list.add(RowCache.copy(t));
+			size += estimateSize(t);
+		}
+		if (size > this.maxBytes) {
+			return;
+		}
+		CacheEntry entry = new CacheEntry(list, tableNames, size);
+		synchronized (this) {
+			if (this.version != version) {
+				return;
+			}
+			remove(key);
+			this.map.put(key, entry);
+			this.bytes += size;
+			for (String name : tableNames) {
+				name = normalize(name);
+				Set<Key> keys = this.tableMap.get(name);
+				if (keys == null) {
+					keys = new HashSet<Key>();
+					this.tableMap.put(name, keys);
+				}
+				keys.add(key);
+			}
+			Iterator<Map.Entry<Key, CacheEntry>> it = this.map.entrySet().iterator();
+			while (this.bytes > this.maxBytes && it.hasNext()) {
+				Map.Entry<Key, CacheEntry> eldest = it.next();
+				it.remove();
+				removed(eldest.getKey(), eldest.getValue());
+				this.evictionCount++;
+			}
+		}
+	}
+	
+	private void remove(Key key) {
+		CacheEntry entry = this.map.remove(key);
+		if (entry != null) {
+			removed(key, entry);
+		}
+	}
+	
+	private void removed(Key key, CacheEntry entry) {
+		this.bytes -= entry.size;
+		for (String name : entry.tableNames) {
+			Set<Key> keys = this.tableMap.get(normalize(name));
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					this.tableMap.remove(normalize(name));
+				}
+			}
+		}
+	}
+	
+	private static String normalize(String tableName) {
+		return tableName.toLowerCase();
+	}
+	
+	private static long estimateSize(Table t) {
+		long ret = 48 + 8 * t.getSchema().size();
+		for (Field f : t.listValued()) {
+			ret += estimateSize(t.get(f));
+		}
+		return ret;
+	}
+	
+	private static long estimateSize(Object o) {
+		if (o == null) {
+			return 0;
+		} else if (o instanceof String) {
+			return 40 + 2 * ((String)o).length();
+		} else if (o instanceof byte[]) {
+			return 16 + ((byte[])o).length;
+		} else if (o instanceof BigDecimal) {
+			return 64;
+		} else if (o instanceof Object[]) {
+			long ret = 16;
+			for (Object v : (Object[])o) {
+				ret += 8 + estimateSize(v);
+			}
+			return ret;
+		}
+		return 24;
+	}
+	
+	private class CacheEntry {
+		
+		public List<Table> rows;
+		public List<String> tableNames;
+		public long size;
+		public long expires;
+		
+		public CacheEntry(List<Table> rows, List<String> tableNames, long size) {
+			this.rows = rows;
+			this.tableNames = tableNames;
+			this.size = size;
+			this.expires = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+		}
+		
+		public boolean isExpired() {
+			return this.expires != 0 && System.currentTimeMillis() > this.expires;
+		}
+	}
+	
+	private static class Key {
+		
+		private Class<?> type;
+		private String sql;
+		private Object[] params;
+		private boolean single;
+		private int hash;
+		
+		public Key(Class<?> type, String sql, Object[] params, boolean single) {
+			this.type = type;
+			this.sql = sql;
+			this.params = params == null ? new Object[0] : params.clone();
+			this.single = single;
+			this.hash = (type.hashCode() * 31 + sql.hashCode()) * 31 + Arrays.deepHashCode(this.params) + (single ? 1 : 0);
+		}
+		
+		public long estimateSize() {
+			return 64 + 2 * sql.length() + QueryCache.estimateSize(this.params);
+		}
+		
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key)o;
+				return k.type == type && k.single == single && k.sql.equals(sql) && Arrays.deepEquals(k.params, params);
+			}
+			return false;
+		}
+		
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+}
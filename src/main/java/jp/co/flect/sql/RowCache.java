@@ -0,0 +1,235 @@
+package jp.co.flect.sql;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.flect.sql.Table.Field;
+
+/**
+ * 主キーの値をキーとして行を保持するキャッシュ<br>
+ * TableSchema.setRowCacheでTableのクラスごとに設定し、DBTool.selectByKey、selectByKeysで使用されます。<br>
+ * 件数が最大数を超えた場合は最も古く参照された行から削除され、有効期間を過ぎた行は参照時に削除されます。<br>
+ * DBToolでINSERT、UPDATE、DELETE、UPSERTした行はキャッシュから削除されます。
+ * 主キー以外のWHERE句でUPDATE、DELETEした場合はキャッシュ全体がクリアされます。
+ * AutoCommitがfalseの場合は、commitまたはrollbackの時点で再度削除されます。<br>
+ * 検索中に削除やクリアが行われた場合、その検索結果はキャッシュに追加されません。<br>
+ * DBTool以外(SQLの直接実行や他のプロセス)での変更は検出できないので、有効期間で調整してください。<br>
+ * キャッシュの行は複製して返されるので、変更してもキャッシュには影響しません。<br>
+ * 主キーの値は整数のクラスの違い(IntegerとLongなど)を区別しません。
+ */
+public class RowCache extends TableAdapter {
+	
+	private int maxSize;
+	private long ttl;
+	private LinkedHashMap<Object, CacheEntry> map;
+	
+	/** 削除、クリアの回数 */
+	private long version = 0;
+	
+	private long hitCount = 0;
+	private long missCount = 0;
+	
+	/**
+	 * @param maxSize 保持する最大件数
+	 * @param ttl 有効期間(ミリ秒)。0以下の場合は無期限
+	 */
+	public RowCache(int maxSize, long ttl) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.map = new LinkedHashMap<Object, CacheEntry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, CacheEntry> eldest) {
+				return size() > RowCache.this.maxSize;
+			}
+		};
+	}
+	
+	public int getMaxSize() { return this.maxSize;}
+	public long getTimeToLive() { return this.ttl;}
+	
+	public synchronized int size() { return this.map.size();}
+	public synchronized long getHitCount() { return this.hitCount;}
+	public synchronized long getMissCount() { return this.missCount;}
+	
+	/**
+	 * キャッシュから行の複製を返します。存在しない場合はnullを返します。
+	 * @param key 主キーの値。複合主キーの場合は主キーの順の値のList
+	 */
+	public Table get(Object key) {
+		key = normalizeKey(key);
+		CacheEntry entry = null;
+		synchronized (this) {
+			entry = this.map.get(key);
+			if (entry != null && entry.isExpired()) {
+				this.map.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				this.missCount++;
+				return null;
+			}
+			this.hitCount++;
+		}
+		return copy(entry.table);
+	}
+	
+	/**
+	 * 行の複製をキャッシュに追加します。<br>
+	 * 主キーの値が設定されていない場合は追加されません。
+	 */
+	public void put(Table t) {
+		put(t, -1);
+	}
+	
+	/**
+	 * 検索の開始前に取得し、put(Table, long)に渡します。
+	 */
+	synchronized long getVersion() { return this.version;}
+	
+	/**
+	 * 行の複製をキャッシュに追加します。<br>
+	 * versionを取得した後に削除、クリアが行われていた場合は追加されません。
+	 * @param version 検索の開始前にgetVersionで取得した値。負の場合はチェックしません
+	 */
+	boolean put(Table t, long version) {
+		Object key = getKey(t);
+		if (key == null) {
+			return false;
+		}
+		CacheEntry entry = new CacheEntry(copy(t));
+		synchronized (this) {
+			if (version >= 0 && version != this.version) {
+				return false;
+			}
+			this.map.put(key, entry);
+		}
+		return true;
+	}
+	
+	/**
+	 * 主キーの値の行をキャッシュから削除します。
+	 */
+	public synchronized void remove(Object key) {
+		this.version++;
+		this.map.remove(normalizeKey(key));
+	}
+	
+	/**
+	 * キャッシュをクリアします。
+	 */
+	public synchronized void clear() {
+		this.version++;
+		this.map.clear();
+	}
+	
+	/**
+	 * Tableの主キーの値の行をキャッシュから削除します。<br>
+	 * 主キーの値が設定されていない場合はキャッシュをクリアします。
+	 */
+	public void remove(Table t) {
+		Object key = getKey(t);
+		if (key == null) {
+			clear();
+		} else {
+			remove(key);
+		}
+	}
+	
+	@Override
+	public void afterInsert(TableEvent e) {
+		remove(e.getTable());
+	}
+	
+	@Override
+	public void afterUpdate(TableEvent e) {
+		remove(e.getTable());
+	}
+	
+	@Override
+	public void afterDelete(TableEvent e) {
+		remove(e.getTable());
+	}
+	
+	/**
+	 * Tableの主キーの値を正規化して返します。<br>
+	 * 複合主キーの場合は主キーの順の値のListを返します。
+	 * 主キーに値が設定されていない場合はnullを返します。
+	 */
+	static Object getKey(Table t) {
+		List<Field> keys = t.getSchema().getKeys();
+		if (keys.size() == 0) {
+			return null;
+		}
+		Object[] values = new Object[keys.size()];
+		for (int i=0; i<values.length; i++) {
+			Field f = keys.get(i);
+			if (!t.isValued(f.getName())) {
+				return null;
+			}
+			values[i] = normalizeKey(t.get(f));
+		}
+		return values.length == 1 ? values[0] : Arrays.asList(values);
+	}
+	
+	/**
+	 * データベースから読み込んだ値と呼び出し元が指定した値を比較できるように主キーの値を正規化します。<br>
+	 * 整数はLongに、小数部のないBigDecimalはLongに変換されます。
+	 * Listと配列は各要素を正規化したListになります。
+	 */
+	static Object normalizeKey(Object o) {
+		if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+			return ((Number)o).longValue();
+		} else if (o instanceof BigInteger) {
+			BigInteger n = (BigInteger)o;
+			return n.bitLength() < 64 ? (Object)n.longValue() : n;
+		} else if (o instanceof BigDecimal) {
+			BigDecimal n = (BigDecimal)o;
+			try {
+				return n.longValueExact();
+			} catch (ArithmeticException e) {
+				return n.signum() == 0 ? BigDecimal.ZERO : n.stripTrailingZeros();
+			}
+		} else if (o instanceof Object[]) {
+			return normalizeKey(Arrays.asList((Object[])o));
+		} else if (o instanceof List) {
+			List<?> list = (List<?>)o;
+			List<Object> ret = new ArrayList<Object>(list.size());
+			for (Object v : list) {
+				ret.add(normalizeKey(v));
+			}
+			return ret;
+		}
+		return o;
+	}
+	
+	static Table copy(Table t) {
+		Table ret = t.clone();
+		for (Field f : t.listValued()) {
+			ret.setLoadedValue(f, t.get(f));
+		}
+		return ret;
+	}
+	
+	private class CacheEntry {
+		
+		public Table table;
+		public long expires;
+		
+		public CacheEntry(Table table) {
+			this.table = table;
+			this.expires = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+		}
+		
+		public boolean isExpired() {
+			return this.expires != 0 && System.currentTimeMillis() > this.expires;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package jp.co.flect.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import jp.co.flect.sql.Table.Field;
+
+/**
+ * ResultSetの行をTableに直接コピーするクラス<br>
+ * SELECT句の各列とTableのフィールドの対応は構築時に一度だけ解決されるので、
+ * 行ごとに中間のMapを生成することはありません。<br>
+ * Tableのフィールドに対応しない列は読み込まれません。
+ */
+public class RowMapper<T extends Table> {
+	
+	private T prototype;
+	private SelectBuilder builder;
+	private CompiledQuery query;
+	
+	/** 列番号(0から開始)に対応するフィールド。対応するフィールドがない場合はnull */
+	private Field[] fields;
+	private int[] types = null;
+	
+	/**
+	 * SelectBuilderのSELECT句とTableから構築します
+	 */
+	public RowMapper(SelectBuilder builder, T prototype) {
+		this.builder = builder;
+		this.prototype = prototype;
+		this.fields = resolveFields(builder.getFieldNames(), prototype);
+	}
+	
+	/**
+	 * CompiledQueryのSELECT句とTableから構築します
+	 */
+	public RowMapper(CompiledQuery query, T prototype) {
+		this.query = query;
+		this.prototype = prototype;
+		String[] names = new String[query.getColumnCount()];
+		for (int i=0; i<names.length; i++) {
+			names[i] = query.getFieldName(i);
+		}
+		this.fields = resolveFields(names, prototype);
+	}
+	
+	private static Field[] resolveFields(String[] names, Table table) {
+		Field[] ret = new Field[names.length];
+		for (int i=0; i<names.length; i++) {
+			ret[i] = table.getField(names[i]);
+		}
+		return ret;
+	}
+	
+	/**
+	 * 行のコピー先となるTableを返します。
+	 */
+	public T getPrototype() { return this.prototype;}
+	
+	/**
+	 * ResultSetの現在の行の内容を新しいTableにコピーして返します。
+	 */
+	public T map(ResultSet rs) throws SQLException {
+		if (this.types == null) {
+			this.types = this.query != null ? this.query.getColumnTypes(rs) : this.builder.getColumnTypes(rs);
+		}
+		//cloneはprototypeと同じクラスのインスタンスを返す
+		@SuppressWarnings("unchecked")
+		T ret = (T)this.prototype.clone();
+		for (int i=0; i<this.fields.length; i++) {
+			Field f = this.fields[i];
+			if (f != null) {
+				ret.setLoadedValue(f, SelectBuilder.getValue(rs, i+1, this.types[i]));
+			}
+		}
+		return ret;
+	}
+}
@@ -4,6 +4,8 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.Date;
 import java.text.SimpleDateFormat;
 import java.sql.ResultSet;
@@ -15,6 +17,9 @@ import jp.co.flect.sql.Condition.LogicalOp;
 import jp.co.flect.sql.Condition.ComparisionOp;
 import jp.co.flect.sql.Condition.CompoundCondition;
 import jp.co.flect.sql.Condition.Combine;
+import jp.co.flect.sql.Condition.Exists;
+import jp.co.flect.sql.Condition.Keyset;
+import jp.co.flect.sql.Table.Field;
 
 /**
  * SELECT文を構築するクラス<br>
@@ -32,6 +37,7 @@ public class SelectBuilder implements Selectable {
 	
 	private String aliasPrefix = "";
 	private char quoteChar = 0;
+	private Dialect dialect = null;
 	private TableInfo mainTable;
 	private List<Select> selects = new ArrayList<Select>();
 	private List<Join> joins = null;
@@ -41,6 +47,7 @@ public class SelectBuilder implements Selectable {
 	private ForUpdate forUpdate = null;
 	
 	private boolean distinct = false;
+	private boolean bindLiterals = false;
 	private int limit = 0;
 	private int offset = 0;
 	
@@ -76,6 +83,26 @@ public class SelectBuilder implements Selectable {
 		return this;
 	}
 	
+	/**
+	 * 条件に指定した値をパラメータ(?)としてバインドします
+	 */
+	public SelectBuilder bindLiterals() {
+		return bindLiterals(true);
+	}
+	
+	/**
+	 * 条件(CompareParam、In)に指定した値をSQLに埋め込まずにパラメータ(?)としてバインドするかどうかを設定します<br>
+	 * 値が変わってもSQLは同じになるので、PreparedStatementやデータベースの実行計画のキャッシュが有効になります。<br>
+	 * 値はcompile()で生成したCompiledQueryが保持し、DBToolの実行時にパラメータと合わせて自動的に設定されます。<br>
+	 * EXISTSなどの副問合せの値は、外側のSelectBuilderの設定に従います。
+	 */
+	public SelectBuilder bindLiterals(boolean b) {
+		this.bindLiterals = b;
+		return this;
+	}
+	
+	public boolean isBindLiterals() { return this.bindLiterals;}
+	
 	/**
 	 * SELECT句にフィールドを追加します<br>
 	 * @param field フィールド名 または任意のリテラル
@@ -436,9 +463,28 @@ public class SelectBuilder implements Selectable {
 	 */
 	public void setQuoteChar(char c) { this.quoteChar = c;}
 	
+	/**
+	 * 生成するSQLの方言を返します。<br>
+	 * 設定されていない場合は親のSelectBuilderの値を返します。
+	 */
+	public Dialect getDialect() {
+		if (this.dialect == null && this.parent != null) {
+			return this.parent.getDialect();
+		}
+		return this.dialect;
+	}
+	
+	/**
+	 * 生成するSQLの方言を設定します。<br>
+	 * 配列のパラメータに対応している場合、値の多いIN句は「= ANY(?)」となります。
+	 */
+	public void setDialect(Dialect d) { this.dialect = d;}
+	
 	/**
 	 * SQLを返します。<br>
+	 * リテラルをバインドする場合、条件の値は「?」となります。<br>
 	 * 設定内容が不正な場合はIllegalArgumentExceptionとなります。
+	 * @see #bindLiterals(boolean)
 	 */
 	public String toSQL() {
 		return toSQL(false);
@@ -450,8 +496,240 @@ public class SelectBuilder implements Selectable {
 	 */
 	public String toSQL(boolean newLine) {
 		StringBuilder buf = new StringBuilder();
-		build(buf, newLine);
-		return buf.toString();
+		Object[] literals = build(buf, newLine, this.selects, this.joins, null, true, 0);
+		return literals == null ? buf.toString() : CompiledQuery.resolveLiterals(buf.toString(), null);
+	}
+	
+	/**
+	 * 現在の設定内容でSQLを構築し、不変のCompiledQueryを返します。<br>
+	 * CompiledQueryは以後のSelectBuilderの変更の影響を受けず、
+	 * 複数のスレッドから同時に使用できます。<br>
+	 * 設定内容が不正な場合はIllegalArgumentExceptionとなります。
+	 */
+	public CompiledQuery compile() {
+		return compile(this.selects, this.joins, null, true, 0);
+	}
+	
+	/**
+	 * 既存のWHERE句を括弧で囲み、ANDで条件を追加したCompiledQueryを返します。<br>
+	 * このSelectBuilderの内容は変更されません。
+	 */
+	CompiledQuery compile(Condition extra) {
+		return compile(this.selects, this.joins, extra, true, 0);
+	}
+	
+	/**
+	 * 既存のWHERE句を括弧で囲み、ANDで条件を追加し、LIMITを置き換えたCompiledQueryを返します。<br>
+	 * extraがnullの場合はLIMITのみを置き換えます。
+	 */
+	CompiledQuery compile(Condition extra, int limit) {
+		return compile(this.selects, this.joins, extra, true, limit);
+	}
+	
+	private CompiledQuery compile(List<Select> selectList, List<Join> joinList, Condition extra, boolean tail, int pageLimit) {
+		StringBuilder buf = new StringBuilder();
+		Object[] literals = build(buf, false, selectList, joinList, extra, tail, pageLimit);
+		String[] names = new String[selectList.size()];
+		for (int i=0; i<names.length; i++) {
+			names[i] = selectList.get(i).getFieldName();
+		}
+		return new CompiledQuery(buf.toString(), names, literals, getTableNames().toArray(new String[0]), tail && forUpdate != null);
+	}
+	
+	/**
+	 * FROM句、JOIN句およびWHERE句の副問合せで参照しているテーブル名を返します。
+	 */
+	public Set<String> getTableNames() {
+		Set<String> set = new LinkedHashSet<String>();
+		addTableNames(set);
+		return set;
+	}
+	
+	private void addTableNames(Set<String> set) {
+		addTableName(set, mainTable.getTable());
+		if (joins != null) {
+			for (Join join : joins) {
+				addTableName(set, join.getTableInfo().getTable());
+			}
+		}
+		if (where != null) {
+			for (WhereEntry entry : where.getList()) {
+				addTableNames(set, entry.cond);
+			}
+		}
+	}
+	
+	private static void addTableName(Set<String> set, Selectable table) {
+		if (table instanceof Table) {
+			set.add(((Table)table).getTableName());
+		} else if (table instanceof SelectBuilder) {
+			((SelectBuilder)table).addTableNames(set);
+		}
+	}
+	
+	private static void addTableNames(Set<String> set, Condition cond) {
+		if (cond instanceof CompoundCondition) {
+			for (Condition c : ((CompoundCondition)cond).getList()) {
+				addTableNames(set, c);
+			}
+		} else if (cond instanceof Exists) {
+			((Exists)cond).getBuilder().addTableNames(set);
+		}
+	}
+	
+	/**
+	 * ORDER BY句のフィールドからキーセットページングの継続条件を生成します。<br>
+	 * ORDER BY句のフィールドはすべてSELECT句に含まれている必要があります。
+	 * また、行を一意に特定できるように主キーなどを含める必要があります。
+	 */
+	public Keyset getKeysetCondition() {
+		getKeyFieldNames();
+		Select[] cols = new Select[orderBy.size()];
+		boolean[] asc = new boolean[cols.length];
+		for (int i=0; i<cols.length; i++) {
+			OrderByEntry entry = orderBy.get(i);
+			cols[i] = entry.sel;
+			asc[i] = entry.asc;
+		}
+		return new Keyset(cols, asc);
+	}
+	
+	/**
+	 * キーセットページングのキーとなるORDER BY句のフィールド名を返します。
+	 */
+	String[] getKeyFieldNames() {
+		if (orderBy == null || orderBy.size() == 0) {
+			throw new IllegalArgumentException("No order by clause");
+		}
+		String[] ret = new String[orderBy.size()];
+		for (int i=0; i<ret.length; i++) {
+			Select sel = orderBy.get(i).sel;
+			String name = sel.getFieldName();
+			if (!(sel instanceof Column) || !hasField(name)) {
+				throw new IllegalArgumentException("Order by field is not selected: " + name);
+			}
+			ret[i] = name;
+		}
+		return ret;
+	}
+	
+	/**
+	 * SELECT句を置き換え、ORDER BY、LIMIT、OFFSET、FOR UPDATEを除いたCompiledQueryを返します。<br>
+	 * extraがnullでない場合は既存のWHERE句にANDで追加されます。
+	 */
+	CompiledQuery compile(List<Select> selectList, Condition extra) {
+		return compile(selectList, this.joins, extra, false, 0);
+	}
+	
+	/**
+	 * 件数を取得するSQLを返します。<br>
+	 * ORDER BY、LIMIT、OFFSET、FOR UPDATEは除かれます。<br>
+	 * DISTINCT、GROUP BYまたは集合関数を含む場合は SELECT COUNT(*) FROM (...) の形式となります。<br>
+	 * 結合するテーブルの主キーのすべてがONの等号条件に含まれ、他から参照されていないLEFT JOINは
+	 * 件数に影響しないので除かれます。<br>
+	 * LIMIT、OFFSETのパラメータ(?)は含まれないので、実行時のパラメータから除く必要があります。
+	 * @see #getLimitParameterCount
+	 */
+	public String toCountSQL() {
+		return compileCount().getSQL();
+	}
+	
+	/**
+	 * 件数を取得するCompiledQueryを返します。
+	 * @see #toCountSQL
+	 */
+	CompiledQuery compileCount() {
+		if (!isGrouped()) {
+			List<Select> selectList = new ArrayList<Select>();
+			selectList.add(new Aggregate("COUNT", new Literal("*")));
+			return compile(selectList, getCountJoins(), null, false, 0);
+		}
+		StringBuilder buf = new StringBuilder();
+		buf.append("SELECT COUNT(*) FROM (");
+		Object[] literals = build(buf, false, this.selects, this.joins, null, false, 0);
+		buf.append(") CNT");
+		return new CompiledQuery(buf.toString(), new String[] { "COUNT"}, literals);
+	}
+	
+	/**
+	 * LIMIT、OFFSETのパラメータ(?)の数を返します。
+	 */
+	public int getLimitParameterCount() {
+		int ret = 0;
+		if (limit == LIMIT_PARAM) {
+			ret++;
+		}
+		if (offset == OFFSET_PARAM) {
+			ret++;
+		}
+		return ret;
+	}
+	
+	//件数に影響しないLEFT JOINを除いたJOIN句
+	private List<Join> getCountJoins() {
+		if (joins == null) {
+			return null;
+		}
+		List<Join> ret = new ArrayList<Join>(joins);
+		boolean removed = true;
+		while (removed) {
+			removed = false;
+			for (int i=ret.size()-1; i>=0; i--) {
+				Join join = ret.get(i);
+				if (join instanceof LeftJoin && join.isUniqueJoin() && !isReferenced(join, ret)) {
+					ret.remove(i);
+					removed = true;
+				}
+			}
+		}
+		return ret;
+	}
+	
+	//WHERE句と他のJOINのONでテーブルの別名が使用されている場合true
+	private boolean isReferenced(Join join, List<Join> joinList) {
+		StringBuilder buf = new StringBuilder();
+		if (where != null) {
+			where.build(buf, false);
+		}
+		for (Join other : joinList) {
+			if (other != join) {
+				other.build(buf);
+				buf.append(" ");
+			}
+		}
+		StringBuilder token = new StringBuilder();
+		quote(token, join.getTableInfo().getAlias());
+		token.append(".");
+		return buf.indexOf(token.toString()) != -1;
+	}
+	
+	/**
+	 * DISTINCT、GROUP BYまたは集合関数を含む場合にtrueを返します。
+	 */
+	boolean isGrouped() {
+		return distinct || hasGroupBy();
+	}
+	
+	/**
+	 * GROUP BYまたは集合関数を含む場合にtrueを返します。
+	 */
+	boolean hasGroupBy() {
+		if (groupBy != null && groupBy.size() > 0) {
+			return true;
+		}
+		for (Select sel : selects) {
+			if (sel instanceof Aggregate) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * LIMITまたはOFFSETを含む場合にtrueを返します。
+	 */
+	boolean isLimited() {
+		return limit != 0 || offset != 0;
 	}
 	
 	/**
@@ -462,7 +740,7 @@ public class SelectBuilder implements Selectable {
 	public String toString() {
 		StringBuilder buf = new StringBuilder();
 		try {
-			build(buf, true);
+			build(buf, true, this.selects, this.joins, null, true, 0);
 			return buf.toString();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -474,93 +752,126 @@ public class SelectBuilder implements Selectable {
 	 * ResultSetの現在の行の内容をMapにコピーします。
 	 */
 	public Map<String, Object> map(ResultSet rs) throws SQLException {
-		if (this.rsTypes == null) {
-			ResultSetMetaData meta = rs.getMetaData();
-			if (meta.getColumnCount() < selects.size()) {
-				throw new IllegalArgumentException("Invalid resultSet");
-			}
-			int[] temp = new int[selects.size()];
-			for (int i=0; i<selects.size(); i++) {
-				temp[i] = meta.getColumnType(i+1);
-			}
-			this.rsTypes = temp;
-		}
+		int[] types = getColumnTypes(rs);
 		Map<String, Object> map = new HashMap<String, Object>();
 		for (int i=0; i<selects.size(); i++) {
 			Select sel = selects.get(i);
-			int sqlType = rsTypes[i];
-			Object value = null;
-			switch (sqlType) {
-				case Types.BIGINT:
-				case Types.ROWID:
-					value = rs.getLong(i+1);
-					break;
-				case Types.BLOB:
-				case Types.BINARY:
-				case Types.LONGVARBINARY:
-					value = rs.getBytes(i+1);
-					break;
-				case Types.BIT:
-				case Types.BOOLEAN:
-					value = rs.getBoolean(i+1);
-					break;
-				case Types.CHAR:
-				case Types.CLOB:
-				case Types.NCHAR:
-				case Types.NCLOB:
-				case Types.NVARCHAR:
-				case Types.SQLXML:
-				case Types.VARCHAR:
-				case Types.LONGNVARCHAR:
-				case Types.LONGVARCHAR:
-					value = rs.getString(i+1);
-					break;
-				case Types.DATE:
-					value = rs.getDate(i+1);
-					break;
-				case Types.DECIMAL:
-				case Types.NUMERIC:
-					value = rs.getBigDecimal(i+1);
-					break;
-				case Types.DOUBLE:
-				case Types.FLOAT:
-				case Types.REAL:
-					value = rs.getDouble(i+1);
-					break;
-				case Types.INTEGER:
-				case Types.SMALLINT:
-				case Types.TINYINT:
-					value = rs.getInt(i+1);
-					break;
-				case Types.NULL:
-					value = null;
-					break;
-				case Types.TIME:
-					value = rs.getTime(i+1);
-					break;
-				case Types.TIMESTAMP:
-					value = rs.getTimestamp(i+1);
-					break;
-				case Types.OTHER:
-				case Types.REF:
-				case Types.STRUCT:
-				case Types.VARBINARY:
-					break;
-				case Types.ARRAY:
-				case Types.DATALINK:
-				case Types.DISTINCT:
-				case Types.JAVA_OBJECT:
-				default:
-					throw new IllegalArgumentException("UnsupportedType: " + sqlType);
-			}
-			if (rs.wasNull()) {
-				value = null;
-			}
-			map.put(sel.getFieldName(), value);
+			map.put(sel.getFieldName(), getValue(rs, i+1, types[i]));
 		}
 		return map;
 	}
 	
+	/**
+	 * SELECT句のフィールド名の一覧を返します。
+	 */
+	String[] getFieldNames() {
+		String[] ret = new String[selects.size()];
+		for (int i=0; i<ret.length; i++) {
+			ret[i] = selects.get(i).getFieldName();
+		}
+		return ret;
+	}
+	
+	/**
+	 * ResultSetの各列のデータ型を返します。<br>
+	 * 最初の呼び出し時にResultSetMetaDataから解決されます。
+	 */
+	int[] getColumnTypes(ResultSet rs) throws SQLException {
+		if (this.rsTypes == null) {
+			this.rsTypes = getColumnTypes(rs, selects.size());
+		}
+		return this.rsTypes;
+	}
+	
+	/**
+	 * ResultSetの先頭からcount個の列のデータ型を返します。
+	 */
+	static int[] getColumnTypes(ResultSet rs, int count) throws SQLException {
+		ResultSetMetaData meta = rs.getMetaData();
+		if (meta.getColumnCount() < count) {
+			throw new IllegalArgumentException("Invalid resultSet");
+		}
+		int[] ret = new int[count];
+		for (int i=0; i<count; i++) {
+			ret[i] = meta.getColumnType(i+1);
+		}
+		return ret;
+	}
+	
+	/**
+	 * ResultSetの指定の列の値をSQLのデータ型に応じたオブジェクトで返します。
+	 */
+	static Object getValue(ResultSet rs, int idx, int sqlType) throws SQLException {
+		Object value = null;
+		switch (sqlType) {
+			case Types.BIGINT:
+			case Types.ROWID:
+				value = rs.getLong(idx);
+				break;
+			case Types.BLOB:
+			case Types.BINARY:
+			case Types.LONGVARBINARY:
+				value = rs.getBytes(idx);
+				break;
+			case Types.BIT:
+			case Types.BOOLEAN:
+				value = rs.getBoolean(idx);
+				break;
+			case Types.CHAR:
+			case Types.CLOB:
+			case Types.NCHAR:
+			case Types.NCLOB:
+			case Types.NVARCHAR:
+			case Types.SQLXML:
+			case Types.VARCHAR:
+			case Types.LONGNVARCHAR:
+			case Types.LONGVARCHAR:
+				value = rs.getString(idx);
+				break;
+			case Types.DATE:
+				value = rs.getDate(idx);
+				break;
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				value = rs.getBigDecimal(idx);
+				break;
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.REAL:
+				value = rs.getDouble(idx);
+				break;
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				value = rs.getInt(idx);
+				break;
+			case Types.NULL:
+				value = null;
+				break;
+			case Types.TIME:
+				value = rs.getTime(idx);
+				break;
+			case Types.TIMESTAMP:
+				value = rs.getTimestamp(idx);
+				break;
+			case Types.OTHER:
+			case Types.REF:
+			case Types.STRUCT:
+			case Types.VARBINARY:
+				break;
+			case Types.ARRAY:
+			case Types.DATALINK:
+			case Types.DISTINCT:
+			case Types.JAVA_OBJECT:
+			default:
+				throw new IllegalArgumentException("UnsupportedType: " + sqlType);
+		}
+		if (rs.wasNull()) {
+			value = null;
+		}
+		return value;
+	}
+	
 	/**
 	 * 指定のフィールド名がSELECT句に含まれているかどうかを返します。
 	 */
@@ -735,8 +1046,33 @@ public class SelectBuilder implements Selectable {
 		}
 	}
 	
-	private void build(StringBuilder buf, boolean newLine) {
-		if (selects.size() == 0) {
+	/**
+	 * @param selectList SELECT句
+	 * @param joinList JOIN句
+	 * @param extra nullでない場合、既存のWHERE句を括弧で囲みANDで追加する条件
+	 * @param tail ORDER BY、LIMIT、OFFSET、FOR UPDATEを出力する場合true
+	 * @param pageLimit 0より大きい場合、設定されているLIMITの代わりに使用する値
+	 * @return バインドするリテラルの値。リテラルがない場合、または副問合せとして構築された場合はnull
+	 */
+	private Object[] build(StringBuilder buf, boolean newLine, List<Select> selectList, List<Join> joinList, Condition extra, boolean tail, int pageLimit) {
+		BuildContext context = CONTEXT.get();
+		if (context != null) {
+			//副問合せのリテラルは外側のSelectBuilderで解決する
+			doBuild(buf, newLine, selectList, joinList, extra, tail, pageLimit);
+			return null;
+		}
+		context = new BuildContext(this.bindLiterals);
+		CONTEXT.set(context);
+		try {
+			doBuild(buf, newLine, selectList, joinList, extra, tail, pageLimit);
+		} finally {
+			CONTEXT.remove();
+		}
+		return context.literals == null || context.literals.size() == 0 ? null : context.literals.toArray();
+	}
+	
+	private void doBuild(StringBuilder buf, boolean newLine, List<Select> selectList, List<Join> joinList, Condition extra, boolean tail, int pageLimit) {
+		if (selectList.size() == 0) {
 			throw new IllegalArgumentException("No select clause");
 		}
 		boolean bGroup = groupBy != null && groupBy.size() > 0;
@@ -745,7 +1081,7 @@ public class SelectBuilder implements Selectable {
 			buf.append("DISTINCT ");
 		}
 		boolean first = true;
-		for (Select sel : selects) {
+		for (Select sel : selectList) {
 			if (first) {
 				first = false;
 			} else {
@@ -766,8 +1102,8 @@ public class SelectBuilder implements Selectable {
 		}
 		buf.append("FROM ");
 		mainTable.build(buf);
-		if (joins != null) {
-			for (Join join : joins) {
+		if (joinList != null) {
+			for (Join join : joinList) {
 				if (newLine) {
 					buf.append("\n");
 				} else {
@@ -776,11 +1112,24 @@ public class SelectBuilder implements Selectable {
 				join.build(buf);
 			}
 		}
-		if (where != null) {
+		if (extra != null) {
+			if (newLine) {
+				buf.append("\n");
+			} else {
+				buf.append(" ");
+			}
+			buf.append("WHERE ");
+			if (where != null) {
+				buf.append("(");
+				where.buildConditions(buf, newLine);
+				buf.append(") AND ");
+			}
+			extra.build(buf, this);
+		} else if (where != null) {
 			where.build(buf, newLine);
 		}
 		if (bGroup) {
-			List<Column> gList = groupBy != null ? groupBy : getGroupByColumn(selects);
+			List<Column> gList = groupBy != null ? groupBy : getGroupByColumn(selectList);
 			if (gList.size() > 0) {
 				if (newLine) {
 					buf.append("\n");
@@ -802,6 +1151,9 @@ public class SelectBuilder implements Selectable {
 				}
 			}
 		}
+		if (!tail) {
+			return;
+		}
 		if (orderBy != null) {
 			if (newLine) {
 				buf.append("\n");
@@ -825,6 +1177,7 @@ public class SelectBuilder implements Selectable {
 				}
 			}
 		}
+		int limit = pageLimit > 0 ? pageLimit : this.limit;
 		if (limit != 0) {
 			if (newLine) {
 				buf.append("\n");
@@ -1119,6 +1472,45 @@ public class SelectBuilder implements Selectable {
 			return false;
 		}
 		
+		//結合するテーブルの主キーのすべてがONの等号条件に含まれる場合true(結合される行は最大1行)
+		boolean isUniqueJoin() {
+			Selectable t = info.getTable();
+			if (!(t instanceof Table)) {
+				return false;
+			}
+			List<Field> keys = ((Table)t).listKeys();
+			if (keys.size() == 0) {
+				return false;
+			}
+			for (Field key : keys) {
+				boolean found = false;
+				for (Condition c : on.getList()) {
+					if (c instanceof Combine) {
+						Combine combi = (Combine)c;
+						if (combi.getOp() == ComparisionOp.Equal &&
+						    (isKeyColumn(combi.getCol1(), t, key) && !isTableColumn(combi.getCol2(), t) ||
+						     isKeyColumn(combi.getCol2(), t, key) && !isTableColumn(combi.getCol1(), t)))
+						{
+							found = true;
+							break;
+						}
+					}
+				}
+				if (!found) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private boolean isKeyColumn(Select sel, Selectable t, Field key) {
+			return isTableColumn(sel, t) && ((Column)sel).getField().equals(key.getName());
+		}
+		
+		private boolean isTableColumn(Select sel, Selectable t) {
+			return sel instanceof Column && ((Column)sel).getTable() == t;
+		}
+		
 		public abstract String getJoinString();
 		
 		public TableInfo getTableInfo() {
@@ -1218,16 +1610,24 @@ public class SelectBuilder implements Selectable {
 		}
 		
 		public void build(StringBuilder buf, boolean newLine) {
+			if (newLine) {
+				buf.append("\n");
+			} else {
+				buf.append(" ");
+			}
+			buf.append("WHERE ");
+			buildConditions(buf, newLine);
+		}
+		
+		public void buildConditions(StringBuilder buf, boolean newLine) {
 			for (int i=0; i<list.size(); i++) {
 				WhereEntry entry = list.get(i);
-				if (newLine) {
-					buf.append("\n");
-				} else {
-					buf.append(" ");
-				}
-				if (i == 0) {
-					buf.append("WHERE ");
-				} else {
+				if (i > 0) {
+					if (newLine) {
+						buf.append("\n");
+					} else {
+						buf.append(" ");
+					}
 					buf.append(entry.op).append(" ");
 				}
 				entry.cond.build(buf, SelectBuilder.this);
@@ -1285,6 +1685,46 @@ public class SelectBuilder implements Selectable {
 		}
 	}
 	
+	//SQLの構築中の状態
+	private static class BuildContext {
+		
+		/** バインドするリテラルの値。バインドしない場合はnull */
+		public List<Object> literals;
+		
+		public BuildContext(boolean bindLiterals) {
+			if (bindLiterals) {
+				this.literals = new ArrayList<Object>();
+			}
+		}
+	}
+	
+	private static final ThreadLocal<BuildContext> CONTEXT = new ThreadLocal<BuildContext>();
+	
+	/**
+	 * 構築中のSQLでリテラルをバインドする場合にtrueを返します。
+	 */
+	static boolean isBindingLiterals() {
+		BuildContext context = CONTEXT.get();
+		return context != null && context.literals != null;
+	}
+	
+	/**
+	 * 条件の右辺の値を出力します。<br>
+	 * リテラルをバインドする場合は値を保持してマーカーを出力します。
+	 * マーカーはCompiledQueryで「?」に置き換えられます。
+	 */
+	static void appendValue(StringBuilder buf, SelectBuilder builder, Object value) {
+		BuildContext context = CONTEXT.get();
+		if (context == null || context.literals == null || value instanceof Select) {
+			appendObject(buf, builder, value);
+			return;
+		}
+		buf.append(CompiledQuery.LITERAL_MARKER)
+			.append(context.literals.size())
+			.append(CompiledQuery.LITERAL_MARKER);
+		context.literals.add(value);
+	}
+	
 	static void appendObject(StringBuilder buf, SelectBuilder builder, Object value) {
 		if (value instanceof String) {
 			String str = value.toString();
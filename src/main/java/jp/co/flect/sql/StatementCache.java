@@ -0,0 +1,200 @@
+package jp.co.flect.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SQL文字列をキーとしてPreparedStatementを保持するLRUキャッシュ<br>
+ * 1つのConnectionに対して1つのインスタンスを使用します。<br>
+ * 取得したPreparedStatementは使用中はキャッシュから外れるので、
+ * 同一のSQLが入れ子で実行された場合は別のPreparedStatementが生成されます。
+ */
+public class StatementCache {
+	
+	private Connection con;
+	private int maxSize;
+	private LinkedHashMap<Key, PreparedStatement> map;
+	//貸し出し中のPreparedStatementとそのキー
+	private IdentityHashMap<PreparedStatement, Key> inUse = new IdentityHashMap<PreparedStatement, Key>();
+	//close後はキャッシュしない
+	private boolean closed = false;
+	
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+	
+	public StatementCache(Connection con, int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize: " + maxSize);
+		}
+		this.con = con;
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+				if (size() > StatementCache.this.maxSize) {
+					evictionCount++;
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	public Connection getConnection() { return this.con;}
+	
+	/**
+	 * キャッシュする最大件数を返します。
+	 */
+	public int getMaxSize() { return this.maxSize;}
+	
+	public synchronized int size() { return this.map.size();}
+	public synchronized long getHitCount() { return this.hitCount;}
+	public synchronized long getMissCount() { return this.missCount;}
+	public synchronized long getEvictionCount() { return this.evictionCount;}
+	
+	/**
+	 * キャッシュからPreparedStatementを取得します。<br>
+	 * キャッシュに存在しない場合は新たに生成します。<br>
+	 * 使用後は必ずreleaseを呼び出してください。
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return prepare(sql, Statement.NO_GENERATED_KEYS);
+	}
+	
+	/**
+	 * キャッシュからPreparedStatementを取得します。<br>
+	 * キャッシュに存在しない場合は新たに生成します。<br>
+	 * 使用後は必ずreleaseを呼び出してください。
+	 */
+	public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+		Key key = new Key(sql, autoGeneratedKeys);
+		synchronized (this) {
+			if (this.closed) {
+				//releaseでcloseされる
+				key = null;
+			}
+			PreparedStatement stmt = key == null ? null : this.map.remove(key);
+			if (stmt != null) {
+				if (!stmt.isClosed()) {
+					this.hitCount++;
+					this.inUse.put(stmt, key);
+					return stmt;
+				}
+			}
+			this.missCount++;
+		}
+		PreparedStatement stmt = autoGeneratedKeys == Statement.NO_GENERATED_KEYS ?
+			con.prepareStatement(sql) :
+			con.prepareStatement(sql, autoGeneratedKeys);
+		if (key != null) {
+			synchronized (this) {
+				this.inUse.put(stmt, key);
+			}
+		}
+		return stmt;
+	}
+	
+	/**
+	 * 使用済みのPreparedStatementをキャッシュに戻します。<br>
+	 * 同一のSQLのPreparedStatementがすでにキャッシュされている場合と、closeの後はcloseされます。<br>
+	 * キャッシュに戻す際にバッチとパラメータの値はクリアされます。
+	 */
+	public void release(PreparedStatement stmt) {
+		Key key = null;
+		synchronized (this) {
+			key = this.inUse.remove(stmt);
+		}
+		if (key == null) {
+			closeQuietly(stmt);
+			return;
+		}
+		try {
+			stmt.clearBatch();
+			//byte[]などの大きな値を次の使用まで保持しない
+			stmt.clearParameters();
+		} catch (SQLException e) {
+			closeQuietly(stmt);
+			return;
+		}
+		synchronized (this) {
+			if (this.closed || this.map.containsKey(key)) {
+				closeQuietly(stmt);
+			} else {
+				this.map.put(key, stmt);
+			}
+		}
+	}
+	
+	/**
+	 * キャッシュされているPreparedStatementをすべてcloseします。<br>
+	 * 以後もキャッシュは使用できます。使用中のPreparedStatementはreleaseでキャッシュに戻されます。
+	 */
+	public void clear() {
+		clear(false);
+	}
+	
+	/**
+	 * キャッシュされているPreparedStatementをすべてcloseし、以後はキャッシュしません。<br>
+	 * 使用中のPreparedStatementはreleaseでcloseされ、
+	 * prepareはキャッシュを使用せずにPreparedStatementを生成します。
+	 */
+	public void close() {
+		clear(true);
+	}
+	
+	public synchronized boolean isClosed() { return this.closed;}
+	
+	private void clear(boolean close) {
+		List<PreparedStatement> list = null;
+		synchronized (this) {
+			if (close) {
+				this.closed = true;
+			}
+			list = new ArrayList<PreparedStatement>(this.map.values());
+			this.map.clear();
+		}
+		for (PreparedStatement stmt : list) {
+			closeQuietly(stmt);
+		}
+	}
+	
+	private static void closeQuietly(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			//ignore
+		}
+	}
+	
+	private static class Key {
+		
+		private String sql;
+		private int autoGeneratedKeys;
+		
+		public Key(String sql, int autoGeneratedKeys) {
+			this.sql = sql;
+			this.autoGeneratedKeys = autoGeneratedKeys;
+		}
+		
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key)o;
+				return k.sql.equals(sql) && k.autoGeneratedKeys == autoGeneratedKeys;
+			}
+			return false;
+		}
+		
+		public int hashCode() {
+			return sql.hashCode() + autoGeneratedKeys;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package jp.co.flect.sql;
+
+/**
+ * DBToolが実行したSQLの処理時間を受け取るインターフェース<br>
+ * DBTool.setStatementMetricsで設定します。
+ * 設定されていない場合は時間の計測自体が行われません。<br>
+ * DBToolのスレッドから同期なしで呼び出されるので、実装はスレッドセーフである必要があります。
+ * @see MetricsCollector
+ */
+public interface StatementMetrics {
+	
+	/**
+	 * PreparedStatementを準備した時に呼び出されます。<br>
+	 * StatementCacheを使用している場合はキャッシュから取得した時間も含みます。
+	 * @param nanos 処理時間(ナノ秒)
+	 */
+	public void prepared(String sql, long nanos);
+	
+	/**
+	 * executeQueryまたはexecuteUpdateを実行した時に呼び出されます。
+	 * @param nanos 処理時間(ナノ秒)
+	 * @param count 更新件数。検索の場合は-1
+	 */
+	public void executed(String sql, long nanos, int count);
+	
+	/**
+	 * executeBatchを実行した時に呼び出されます。
+	 * @param nanos 処理時間(ナノ秒)
+	 * @param batchSize バッチに追加した行数
+	 * @param count 更新件数の合計。ドライバが件数を返さない行は含みません
+	 */
+	public void batchExecuted(String sql, long nanos, int batchSize, int count);
+	
+	/**
+	 * 検索結果の読み込みとTableへの変換が終了した時に呼び出されます。<br>
+	 * Cursorの場合はcloseの時点で読み込みにかかった時間の合計が通知されます。
+	 * @param nanos 処理時間(ナノ秒)
+	 * @param rows 読み込んだ行数。不明な場合は-1
+	 */
+	public void fetched(String sql, long nanos, int rows);
+}
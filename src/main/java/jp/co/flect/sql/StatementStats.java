@@ -0,0 +1,182 @@
+package jp.co.flect.sql;
+
+/**
+ * MetricsCollectorが集計したSQLごとの統計のスナップショット<br>
+ * 値は取得した時点のもので、以降の実行では更新されません。
+ * @see MetricsCollector#getSnapshot
+ */
+public class StatementStats {
+	
+	private String sql;
+	private Timing prepare;
+	private Timing execute;
+	private Timing fetch;
+	private long rowsReturned;
+	private long rowsAffected;
+	private long batchCount;
+	private long batchRows;
+	
+	StatementStats(String sql, Timing prepare, Timing execute, Timing fetch, long rowsReturned, long rowsAffected, long batchCount, long batchRows) {
+		this.sql = sql;
+		this.prepare = prepare;
+		this.execute = execute;
+		this.fetch = fetch;
+		this.rowsReturned = rowsReturned;
+		this.rowsAffected = rowsAffected;
+		this.batchCount = batchCount;
+		this.batchRows = batchRows;
+	}
+	
+	/**
+	 * リテラルとパラメータの数を正規化したSQLを返します。
+	 * @see MetricsCollector#fingerprint
+	 */
+	public String getSQL() { return this.sql;}
+	
+	/**
+	 * PreparedStatementの準備にかかった時間を返します。
+	 */
+	public Timing getPrepare() { return this.prepare;}
+	
+	/**
+	 * executeQuery、executeUpdate、executeBatchの実行にかかった時間を返します。
+	 */
+	public Timing getExecute() { return this.execute;}
+	
+	/**
+	 * 検索結果の読み込みとTableへの変換にかかった時間を返します。
+	 */
+	public Timing getFetch() { return this.fetch;}
+	
+	/**
+	 * 実行回数を返します。executeBatchは1回として数えます。
+	 */
+	public long getExecuteCount() { return this.execute.getCount();}
+	
+	/**
+	 * 準備、実行、読み込みの時間の合計(ナノ秒)を返します。
+	 */
+	public long getTotalNanos() {
+		return this.prepare.getTotalNanos() + this.execute.getTotalNanos() + this.fetch.getTotalNanos();
+	}
+	
+	/**
+	 * 検索で読み込んだ行数の合計を返します。
+	 */
+	public long getRowsReturned() { return this.rowsReturned;}
+	
+	/**
+	 * 更新件数の合計を返します。
+	 */
+	public long getRowsAffected() { return this.rowsAffected;}
+	
+	/**
+	 * executeBatchの実行回数を返します。
+	 */
+	public long getBatchCount() { return this.batchCount;}
+	
+	/**
+	 * executeBatchで実行した行数の合計を返します。
+	 */
+	public long getBatchRows() { return this.batchRows;}
+	
+	/**
+	 * executeBatch1回あたりの平均の行数を返します。
+	 */
+	public double getAverageBatchSize() {
+		return this.batchCount == 0 ? 0 : (double)this.batchRows / this.batchCount;
+	}
+	
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(this.sql)
+			.append(" [prepare ").append(this.prepare)
+			.append("] [execute ").append(this.execute)
+			.append("] [fetch ").append(this.fetch)
+			.append("] rowsReturned=").append(this.rowsReturned)
+			.append(" rowsAffected=").append(this.rowsAffected);
+		if (this.batchCount > 0) {
+			buf.append(" batches=").append(this.batchCount)
+				.append(" batchRows=").append(this.batchRows);
+		}
+		return buf.toString();
+	}
+	
+	/**
+	 * 処理時間の集計<br>
+	 * ヒストグラムはマイクロ秒単位の2のべき乗ごとのバケットで、
+	 * index 0は1マイクロ秒未満、index iは2^(i-1)以上2^iマイクロ秒未満の件数です。
+	 * 最後のバケットはそれ以上のすべてを含みます。
+	 */
+	public static class Timing {
+		
+		/** ヒストグラムのバケット数 */
+		public static final int BUCKET_COUNT = 32;
+		
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+		private long[] buckets;
+		
+		Timing(long count, long totalNanos, long maxNanos, long[] buckets) {
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.buckets = buckets;
+		}
+		
+		public long getCount() { return this.count;}
+		public long getTotalNanos() { return this.totalNanos;}
+		public long getMaxNanos() { return this.maxNanos;}
+		
+		public long getAverageNanos() {
+			return this.count == 0 ? 0 : this.totalNanos / this.count;
+		}
+		
+		/**
+		 * ヒストグラムの各バケットの件数を返します。
+		 */
+		public long[] getBuckets() { return this.buckets.clone();}
+		
+		/**
+		 * 指定のパーセンタイル(0-100)の推定値(ナノ秒)を返します。<br>
+		 * 該当するバケットの上限値で、最大値を超えることはありません。
+		 */
+		public long getPercentileNanos(double percentile) {
+			if (this.count == 0) {
+				return 0;
+			}
+			long target = (long)Math.ceil(this.count * percentile / 100);
+			long n = 0;
+			for (int i=0; i<this.buckets.length; i++) {
+				n += this.buckets[i];
+				if (n >= target && n > 0) {
+					return Math.min(getBucketLimitNanos(i), this.maxNanos);
+				}
+			}
+			return this.maxNanos;
+		}
+		
+		/**
+		 * 指定のバケットの上限値(ナノ秒)を返します。
+		 */
+		public static long getBucketLimitNanos(int index) {
+			return index == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << index) * 1000;
+		}
+		
+		static int getBucketIndex(long nanos) {
+			long micros = nanos / 1000;
+			int idx = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+			return Math.min(idx, BUCKET_COUNT - 1);
+		}
+		
+		public String toString() {
+			return "count=" + this.count +
+				" total=" + (this.totalNanos / 1000) + "us" +
+				" avg=" + (getAverageNanos() / 1000) + "us" +
+				" p50=" + (getPercentileNanos(50) / 1000) + "us" +
+				" p99=" + (getPercentileNanos(99) / 1000) + "us" +
+				" max=" + (this.maxNanos / 1000) + "us";
+		}
+	}
+}
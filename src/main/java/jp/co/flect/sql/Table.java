@@ -2,20 +2,33 @@ package jp.co.flect.sql;
 
 import java.util.Map;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.BitSet;
 import javax.swing.event.EventListenerList;
 import java.util.Date;
 import java.math.BigDecimal;
 
+import jp.co.flect.sql.TableSchema.StatementPlan;
+
 public abstract class Table implements Selectable, Cloneable {
 	
+	/**
+	 * addFieldでフィールドを定義します。<br>
+	 * フィールドの定義はサブクラスとテーブル名ごとに共有されるので、
+	 * init、beforeInit、afterInitは最初のインスタンスの生成時にのみ呼び出されます。
+	 */
 	protected abstract void init();
 	
-	private Map<String, Object> valueMap = new HashMap<String, Object>();
-	private LinkedHashMap<String, Field> fieldMap = new LinkedHashMap<String, Field>();
-	private boolean initialized = false;
+	private static final Object[] EMPTY_VALUES = new Object[0];
+	
+	private TableSchema schema;
+	/** 値の配列。添字はFieldのindex */
+	private Object[] values = EMPTY_VALUES;
+	/** 値が設定されているFieldのindex */
+	private BitSet valued = new BitSet();
+	/** setで値が変更されたFieldのindex */
+	private BitSet modified = new BitSet();
 	private boolean serialKey = false;
 	private String tableName;
 	
@@ -28,17 +41,27 @@ public abstract class Table implements Selectable, Cloneable {
 	public Table(String tableName, boolean serialKey) {
 		this.tableName = tableName;
 		this.serialKey = serialKey;
-		doInit();
+		this.schema = TableSchema.get(getClass(), tableName, serialKey);
+		if (this.schema == null) {
+			doInit();
+		} else {
+			this.values = new Object[this.schema.size()];
+		}
 	}
 	
 	public Map<String, Object> getValueMap() {
-		return new HashMap<String, Object>(this.valueMap);
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (int i=valued.nextSetBit(0); i>=0; i=valued.nextSetBit(i+1)) {
+			map.put(schema.getField(i).getName(), values[i]);
+		}
+		return map;
 	}
 	
 	public void setValueMap(Map<String, Object> map) {
 		for (Map.Entry<String, Object> entry : map.entrySet()) {
-			if (hasField(entry.getKey())) {
-				this.valueMap.put(entry.getKey(), entry.getValue());
+			Field f = schema.getField(entry.getKey());
+			if (f != null) {
+				setValue(f.getIndex(), entry.getValue());
 			}
 		}
 	}
@@ -61,38 +84,45 @@ public abstract class Table implements Selectable, Cloneable {
 	 * フィールド一覧の取得
 	 */
 	public List<Field> listFields() {
-		return new ArrayList<Field>(fieldMap.values());
+		return new ArrayList<Field>(schema.getFields());
 	}
 	
 	public List<Field> listKeys() {
-		List<Field> list = new ArrayList();
-		for (Field f : fieldMap.values()) {
-			if (f.isPrimaryKey()) {
-				list.add(f);
-			}
-		}
-		return list;
+		return new ArrayList<Field>(schema.getKeys());
 	}
 	
 	public List<Field> listValued() {
 		List<Field> list = new ArrayList();
-		for (Field f : fieldMap.values()) {
-			if (valueMap.containsKey(f.getName())) {
-				list.add(f);
-			}
+		for (int i=valued.nextSetBit(0); i>=0; i=valued.nextSetBit(i+1)) {
+			list.add(schema.getField(i));
 		}
 		return list;
 	}
 	public int countValued() {
-		return valueMap.size();
+		return valued.cardinality();
+	}
+	
+	/**
+	 * 指定のフィールドに値が設定されているかどうかを返します。
+	 */
+	public boolean isValued(String name) {
+		Field f = schema.getField(name);
+		return f != null && valued.get(f.getIndex());
 	}
 	
 	public boolean hasField(String name) {
-		return fieldMap.get(name) != null;
+		return schema.getField(name) != null;
 	}
 	
 	public Field getField(String name) {
-		return fieldMap.get(name);
+		return schema.getField(name);
+	}
+	
+	/**
+	 * フィールド定義を返します。
+	 */
+	public TableSchema getSchema() {
+		return this.schema;
 	}
 	
 	public void addTableListener(TableListener l) {
@@ -105,31 +135,39 @@ public abstract class Table implements Selectable, Cloneable {
 	
 	private void fireEvent(int eventId) {
 		TableListener[] ls = listenerList.getListeners(TableListener.class);
-		if (ls == null || ls.length == 0) {
+		List<TableListener> schemaListeners = schema.getTableListeners();
+		if ((ls == null || ls.length == 0) && schemaListeners.isEmpty()) {
 			return;
 		}
 		TableEvent e = new TableEvent(this);
 		for (TableListener l : ls) {
-			switch (eventId) {
-				case TableEvent.BEFORE_INSERT:
-					l.beforeInsert(e);
-					break;
-				case TableEvent.AFTER_INSERT:
-					l.afterInsert(e);
-					break;
-				case TableEvent.BEFORE_UPDATE:
-					l.beforeUpdate(e);
-					break;
-				case TableEvent.AFTER_UPDATE:
-					l.afterUpdate(e);
-					break;
-				case TableEvent.BEFORE_DELETE:
-					l.beforeDelete(e);
-					break;
-				case TableEvent.AFTER_DELETE:
-					l.afterDelete(e);
-					break;
-			}
+			fireEvent(l, eventId, e);
+		}
+		for (TableListener l : schemaListeners) {
+			fireEvent(l, eventId, e);
+		}
+	}
+	
+	private static void fireEvent(TableListener l, int eventId, TableEvent e) {
+		switch (eventId) {
+			case TableEvent.BEFORE_INSERT:
+				l.beforeInsert(e);
+				break;
+			case TableEvent.AFTER_INSERT:
+				l.afterInsert(e);
+				break;
+			case TableEvent.BEFORE_UPDATE:
+				l.beforeUpdate(e);
+				break;
+			case TableEvent.AFTER_UPDATE:
+				l.afterUpdate(e);
+				break;
+			case TableEvent.BEFORE_DELETE:
+				l.beforeDelete(e);
+				break;
+			case TableEvent.AFTER_DELETE:
+				l.afterDelete(e);
+				break;
 		}
 	}
 	
@@ -158,35 +196,149 @@ public abstract class Table implements Selectable, Cloneable {
 	}
 	
 	private void doInit() {
+		this.schema = new TableSchema(this.tableName, this.serialKey);
 		beforeInit();
 		init();
 		afterInit();
-		initialized = true;
+		this.schema.freeze();
+		this.schema = TableSchema.register(getClass(), this.schema);
 	}
 	
 	protected void beforeInit() {}
 	protected void afterInit() {}
 	
-	private void checkName(String name) {
-		if (fieldMap.get(name) == null) {
+	private Field checkName(String name) {
+		Field f = schema.getField(name);
+		if (f == null) {
 			throw new IllegalArgumentException(name);
 		}
+		return f;
 	}
 	
 	protected void addField(String name, int type, boolean primaryKey) {
-		if (initialized) {
-			throw new IllegalStateException("Already initialized");
+		Field f = schema.addField(name, type, primaryKey);
+		if (f.getIndex() >= values.length) {
+			Object[] temp = new Object[f.getIndex() + 1];
+			System.arraycopy(values, 0, temp, 0, values.length);
+			values = temp;
+		}
+	}
+	
+	/**
+	 * フィールドを追加し、その位置がindexと一致することを確認します。<br>
+	 * 生成されたクラスでdoGet、doSetに使用する位置の定数を検証するために使用します。
+	 */
+	protected void addField(String name, int type, boolean primaryKey, int index) {
+		addField(name, type, primaryKey);
+		if (schema.getField(name).getIndex() != index) {
+			throw new IllegalStateException("Field index mismatch: " + name);
 		}
-		fieldMap.put(name, new Field(name, type, primaryKey));
 	}
 	
 	public Object get(String name) {
-		return valueMap.get(name);
+		Field f = schema.getField(name);
+		return f == null ? null : values[f.getIndex()];
 	}
 	
 	public void set(String name, Object value) {
-		checkName(name);
-		valueMap.put(name, value);
+		int idx = checkName(name).getIndex();
+		setValue(idx, value);
+		modified.set(idx);
+	}
+	
+	/**
+	 * 指定のフィールドの値を返します。<br>
+	 * このTableのFieldの場合は名前を検索せずに値を取得します。
+	 */
+	public Object get(Field f) {
+		int idx = indexOf(f);
+		return idx == -1 ? get(f.getName()) : values[idx];
+	}
+	
+	/**
+	 * 指定のフィールドに値を設定します。<br>
+	 * このTableのFieldの場合は名前を検索せずに値を設定します。
+	 */
+	public void set(Field f, Object value) {
+		int idx = indexOf(f);
+		if (idx == -1) {
+			set(f.getName(), value);
+		} else {
+			setValue(idx, value);
+			modified.set(idx);
+		}
+	}
+	
+	//このTableのFieldでない場合は-1
+	private int indexOf(Field f) {
+		int idx = f.getIndex();
+		if (idx >= 0 && idx < schema.size()) {
+			Field f2 = schema.getField(idx);
+			if (f2 == f || f2.equals(f)) {
+				return idx;
+			}
+		}
+		return -1;
+	}
+	
+	private void setValue(int idx, Object value) {
+		values[idx] = value;
+		valued.set(idx);
+	}
+	
+	//DBから読み込んだ値の設定(フィールドのチェックは呼び出し元で行う)
+	void setLoadedValue(Field f, Object value) {
+		setValue(f.getIndex(), value);
+	}
+	
+	/**
+	 * setで値が変更されたフィールドがあるかどうかを返します。<br>
+	 * setValueMapやDBからの読み込みで設定された値は変更とみなしません。
+	 */
+	public boolean isModified() {
+		return !modified.isEmpty();
+	}
+	
+	/**
+	 * 指定のフィールドの値がsetで変更されたかどうかを返します。
+	 */
+	public boolean isModified(String name) {
+		Field f = schema.getField(name);
+		return f != null && modified.get(f.getIndex());
+	}
+	
+	/**
+	 * setで値が変更されたフィールドの一覧を返します。
+	 */
+	public List<Field> listModified() {
+		List<Field> list = new ArrayList<Field>();
+		for (int i=modified.nextSetBit(0); i>=0; i=modified.nextSetBit(i+1)) {
+			list.add(schema.getField(i));
+		}
+		return list;
+	}
+	
+	/**
+	 * 変更されたフィールドの記録をクリアします。<br>
+	 * DBToolでINSERT、UPDATEした後に呼び出されます。
+	 */
+	public void clearModified() {
+		modified.clear();
+	}
+	
+	/**
+	 * 指定の位置のフィールドの値を返します。
+	 */
+	protected Object doGet(int index) {
+		return values[index];
+	}
+	
+	/**
+	 * 指定の位置のフィールドに値を設定します。
+	 */
+	protected void doSet(int index, Object value) {
+		setValue(index, value);
+		modified.set(index);
 	}
 	
 	protected String doGetString(String name) {
@@ -194,28 +346,23 @@ public abstract class Table implements Selectable, Cloneable {
 	}
 	
 	protected int doGetInt(String name) {
-		Number n = (Number)get(name);
-		return n == null ? 0 : n.intValue();
+		return toInt(get(name));
 	}
 	
 	protected long doGetLong(String name) {
-		Number n = (Number)get(name);
-		return n == null ? 0 : n.longValue();
+		return toLong(get(name));
 	}
 	
 	protected double doGetDouble(String name) {
-		Number n = (Number)get(name);
-		return n == null ? 0 : n.doubleValue();
+		return toDouble(get(name));
 	}
 	
 	protected BigDecimal doGetBigDecimal(String name) {
-		Number n = (Number)get(name);
-		return n == null ? null : n instanceof BigDecimal ? (BigDecimal)n : new BigDecimal(n.toString());
+		return toBigDecimal(get(name));
 	}
 	
 	protected boolean doGetBoolean(String name) {
-		Boolean b = (Boolean)get(name);
-		return b != null && b.booleanValue();
+		return toBoolean(get(name));
 	}
 	
 	protected byte[] doGetBytes(String name) {
@@ -226,87 +373,146 @@ public abstract class Table implements Selectable, Cloneable {
 		return (Date)get(name);
 	}
 	
+	protected String doGetString(int index) {
+		return (String)values[index];
+	}
+	
+	protected int doGetInt(int index) {
+		return toInt(values[index]);
+	}
+	
+	protected long doGetLong(int index) {
+		return toLong(values[index]);
+	}
+	
+	protected double doGetDouble(int index) {
+		return toDouble(values[index]);
+	}
+	
+	protected BigDecimal doGetBigDecimal(int index) {
+		return toBigDecimal(values[index]);
+	}
+	
+	protected boolean doGetBoolean(int index) {
+		return toBoolean(values[index]);
+	}
+	
+	protected byte[] doGetBytes(int index) {
+		return (byte[])values[index];
+	}
+	
+	protected Date doGetDate(int index) {
+		return (Date)values[index];
+	}
+	
+	private static int toInt(Object o) {
+		Number n = (Number)o;
+		return n == null ? 0 : n.intValue();
+	}
+	
+	private static long toLong(Object o) {
+		Number n = (Number)o;
+		return n == null ? 0 : n.longValue();
+	}
+	
+	private static double toDouble(Object o) {
+		Number n = (Number)o;
+		return n == null ? 0 : n.doubleValue();
+	}
+	
+	private static BigDecimal toBigDecimal(Object o) {
+		Number n = (Number)o;
+		return n == null ? null : n instanceof BigDecimal ? (BigDecimal)n : new BigDecimal(n.toString());
+	}
+	
+	private static boolean toBoolean(Object o) {
+		Boolean b = (Boolean)o;
+		return b != null && b.booleanValue();
+	}
+	
 	public String buildInsertStatement() {
-		if (valueMap.size() == 0) {
-			throw new IllegalArgumentException();
-		}
-		StringBuilder buf = new StringBuilder();
-		buf.append("INSERT INTO ")
-			.append(getTableName())
-			.append(" (");
-		
-		StringBuilder phBuf = new StringBuilder();
-		for (Field f : fieldMap.values()) {
-			if (!valueMap.containsKey(f.getName())) {
-				continue;
-			}
-			if (phBuf.length() > 0) {
-				buf.append(",");
-				phBuf.append(",");
-			}
-			buf.append(f.getName());
-			phBuf.append("?");
-		}
-		buf.append(") VALUES(")
-			.append(phBuf)
-			.append(")");
-		return buf.toString();
+		return getInsertPlan().getSQL();
 	}
 	
 	public String buildUpdateStatement(List<Field> whereList) {
-		if (valueMap.size() == 0 || whereList == null || whereList.size() == 0) {
-			throw new IllegalArgumentException();
-		}
-		StringBuilder buf = new StringBuilder();
-		buf.append("UPDATE ")
-			.append(getTableName())
-			.append(" SET ");
-		
-		boolean first = true;
-		for (Field f : fieldMap.values()) {
-			if (whereList.contains(f)) {
-				Object o = valueMap.get(f.getName());
-				if (o == null) {
-					throw new IllegalArgumentException();
-				}
-			} else if (valueMap.containsKey(f.getName())) {
-				if (!first) {
-					buf.append(",");
-				}
-				buf.append(f.getName()).append(" = ?");
-				first = false;
+		return getUpdatePlan(whereList).getSQL();
+	}
+	
+	public String buildDeleteStatement(List<Field> whereList) {
+		return getDeletePlan(whereList).getSQL();
+	}
+	
+	/**
+	 * 値が設定されているフィールドをINSERTするSQLとパラメータを返します。
+	 */
+	public StatementPlan getInsertPlan() {
+		return schema.getInsertPlan(valued);
+	}
+	
+	/**
+	 * 値が設定されているフィールドをrows行まとめてINSERTするSQLとパラメータを返します。
+	 */
+	public StatementPlan getInsertPlan(int rows) {
+		return schema.getInsertPlan(valued, rows);
+	}
+	
+	/**
+	 * 値が設定されているフィールドを主キーでUPSERT(INSERTまたはUPDATE)するSQLとパラメータを返します。
+	 */
+	public String buildUpsertStatement(Dialect dialect) {
+		return getUpsertPlan(dialect, 1).getSQL();
+	}
+	
+	/**
+	 * 値が設定されているフィールドをrows行まとめて主キーでUPSERTするSQLとパラメータを返します。
+	 */
+	public StatementPlan getUpsertPlan(Dialect dialect, int rows) {
+		return schema.getUpsertPlan(valued, dialect, rows);
+	}
+	
+	/**
+	 * 値が設定されているフィールドをUPDATEするSQLとパラメータを返します。
+	 */
+	public StatementPlan getUpdatePlan(List<Field> whereList) {
+		StatementPlan plan = schema.getUpdatePlan(valued, whereList);
+		checkWhereValues(whereList);
+		return plan;
+	}
+	
+	/**
+	 * setで変更されたフィールドのみをUPDATEするSQLとパラメータを返します。<br>
+	 * WHERE句のフィールド以外に変更されたフィールドがない場合はnullを返します。
+	 */
+	public StatementPlan getModifiedUpdatePlan(List<Field> whereList) {
+		boolean hasSet = false;
+		for (int i=modified.nextSetBit(0); i>=0; i=modified.nextSetBit(i+1)) {
+			if (!whereList.contains(schema.getField(i))) {
+				hasSet = true;
+				break;
 			}
 		}
-		buf.append(" WHERE ");
-		first = true;
-		for (Field f : whereList) {
-			if (!first) {
-				buf.append(" AND ");
-			}
-			buf.append(f.getName()).append(" = ?");
-			first = false;
+		if (!hasSet) {
+			return null;
 		}
-		return buf.toString();
+		StatementPlan plan = schema.getUpdatePlan(modified, whereList);
+		checkWhereValues(whereList);
+		return plan;
 	}
 	
-	public String buildDeleteStatement(List<Field> whereList) {
-		if (whereList == null || whereList.size() == 0) {
-			throw new IllegalArgumentException();
-		}
-		StringBuilder buf = new StringBuilder();
-		buf.append("DELETE FROM ")
-			.append(getTableName())
-			.append(" WHERE ");
-		boolean first = true;
+	private void checkWhereValues(List<Field> whereList) {
 		for (Field f : whereList) {
-			if (!first) {
-				buf.append(" AND ");
+			Field sf = schema.getField(f.getName());
+			if (sf != null && sf.equals(f) && values[sf.getIndex()] == null) {
+				throw new IllegalArgumentException();
 			}
-			buf.append(f.getName()).append(" = ?");
-			first = false;
 		}
-		return buf.toString();
-		
+	}
+	
+	/**
+	 * DELETEするSQLとパラメータを返します。
+	 */
+	public StatementPlan getDeletePlan(List<Field> whereList) {
+		return schema.getDeletePlan(whereList);
 	}
 	
 	@Override
@@ -319,17 +525,29 @@ public abstract class Table implements Selectable, Cloneable {
 		private int type;
 		private String name;
 		private boolean primaryKey;
+		private int index;
 		
 		public Field(String name, int type, boolean primaryKey) {
+			this(name, type, primaryKey, -1);
+		}
+		
+		Field(String name, int type, boolean primaryKey, int index) {
 			this.name = name;
 			this.type = type;
 			this.primaryKey = primaryKey;
+			this.index = index;
 		}
 		
 		public String getName() { return this.name;}
 		public int getType() { return this.type;}
 		public boolean isPrimaryKey() { return this.primaryKey;}
 		
+		/**
+		 * Table内でのフィールドの位置(0から開始)を返します。<br>
+		 * Tableに追加されていないFieldの場合は-1を返します。
+		 */
+		public int getIndex() { return this.index;}
+		
 		public boolean equals(Object o) {
 			if (o instanceof Field) {
 				Field f = (Field)o;
@@ -346,11 +564,10 @@ public abstract class Table implements Selectable, Cloneable {
 	public Table clone() {
 		try {
 			Table ret = (Table)super.clone();
-			ret.fieldMap = new LinkedHashMap<String, Field>();
-			ret.valueMap = new HashMap<String, Object>();
+			ret.values = new Object[schema.size()];
+			ret.valued = new BitSet();
+			ret.modified = new BitSet();
 			ret.listenerList = new EventListenerList();
-			ret.initialized = false;
-			ret.doInit();
 			return ret;
 		} catch (CloneNotSupportedException e) {
 			throw new IllegalStateException(e);
@@ -0,0 +1,489 @@
+package jp.co.flect.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jp.co.flect.sql.Table.Field;
+
+/**
+ * Tableのフィールド定義<br>
+ * Tableのサブクラスとテーブル名の組み合わせごとに一度だけ生成され、
+ * そのクラスのすべてのインスタンスで共有されます。<br>
+ * Tableの初期化が完了した後は変更できません。<br>
+ * 登録はクラスを弱参照のキーとして保持し、クラスが参照されなくなると破棄されます。
+ * ただしKeyLookupとRowCacheはそのクラスのインスタンスを保持するので、
+ * これらを使用したクラスの登録はクラスローダーとともに残ります。<br>
+ * 1つのクラスで登録するテーブル名の数は制限されます。日付ごとのパーティションのように
+ * テーブル名を動的に変える場合、上限を超えたテーブル名のTableSchemaは登録されず、
+ * インスタンスの生成ごとに初期化されます。(cloneしたインスタンスとは共有されます)
+ */
+public class TableSchema {
+	
+	/** 1つのクラスで登録するテーブル名の最大数 */
+	private static final int MAX_TABLES_PER_CLASS = 64;
+	
+	private static final Map<Class<?>, ConcurrentHashMap<Key, TableSchema>> REGISTRY = new WeakHashMap<Class<?>, ConcurrentHashMap<Key, TableSchema>>();
+	
+	/** キャッシュするStatementPlanの最大数 */
+	private static final int MAX_PLANS = 256;
+	
+	private static final int PLAN_INSERT = 1;
+	private static final int PLAN_UPDATE = 2;
+	private static final int PLAN_DELETE = 3;
+	private static final int PLAN_UPSERT = 4;
+	
+	private String tableName;
+	private boolean serialKey;
+	private Map<String, Field> fieldMap = new HashMap<String, Field>();
+	private List<Field> fieldList = new ArrayList<Field>();
+	private List<Field> keyList = null;
+	private boolean frozen = false;
+	
+	private ConcurrentHashMap<PlanKey, StatementPlan> planCache = new ConcurrentHashMap<PlanKey, StatementPlan>();
+	
+	/** このスキーマのすべてのTableのイベントを受け取るリスナー */
+	private CopyOnWriteArrayList<TableListener> listeners = new CopyOnWriteArrayList<TableListener>();
+	private volatile RowCache rowCache = null;
+	
+	/** 方言とパラメータの最大数ごとの主キーでの検索 */
+	private ConcurrentHashMap<List<Object>, KeyLookup> keyLookups = new ConcurrentHashMap<List<Object>, KeyLookup>();
+	
+	TableSchema(String tableName, boolean serialKey) {
+		this.tableName = tableName;
+		this.serialKey = serialKey;
+	}
+	
+	/**
+	 * テーブル名を返します。
+	 */
+	public String getTableName() { return this.tableName;}
+	
+	/**
+	 * PRIMARY KEYが自動生成されるシーケンスかどうかを返します。
+	 */
+	public boolean useSerialKey() { return this.serialKey;}
+	
+	/**
+	 * フィールド数を返します。
+	 */
+	public int size() { return this.fieldList.size();}
+	
+	/**
+	 * 指定の位置(0から開始)のフィールドを返します。
+	 */
+	public Field getField(int index) { return this.fieldList.get(index);}
+	
+	/**
+	 * 指定の名前のフィールドを返します。存在しない場合はnullを返します。
+	 */
+	public Field getField(String name) { return this.fieldMap.get(name);}
+	
+	/**
+	 * フィールドの一覧を返します。(変更不可)
+	 */
+	public List<Field> getFields() { return this.fieldList;}
+	
+	/**
+	 * 主キーのフィールドの一覧を返します。(変更不可)
+	 */
+	public List<Field> getKeys() { return this.keyList;}
+	
+	/**
+	 * 初期化が完了しているかどうかを返します。
+	 */
+	public boolean isFrozen() { return this.frozen;}
+	
+	/**
+	 * このスキーマを使用するすべてのTableのイベントを受け取るTableListenerを追加します。
+	 */
+	public void addTableListener(TableListener l) {
+		this.listeners.add(l);
+	}
+	
+	public void removeTableListener(TableListener l) {
+		this.listeners.remove(l);
+	}
+	
+	List<TableListener> getTableListeners() { return this.listeners;}
+	
+	/**
+	 * 主キーで検索した行を保持するRowCacheを返します。
+	 */
+	public RowCache getRowCache() { return this.rowCache;}
+	
+	/**
+	 * 主キーで検索した行を保持するRowCacheを設定します。<br>
+	 * RowCacheはTableListenerとして登録され、DBToolでの変更時に無効化されます。
+	 * nullの場合はキャッシュを使用しません。
+	 */
+	public synchronized void setRowCache(RowCache cache) {
+		if (this.rowCache != null) {
+			removeTableListener(this.rowCache);
+		}
+		this.rowCache = cache;
+		if (cache != null) {
+			addTableListener(cache);
+		}
+	}
+	
+	KeyLookup getKeyLookup(Table prototype, Dialect dialect, int maxParameters) {
+		List<Object> key = Arrays.<Object>asList(dialect, maxParameters);
+		KeyLookup ret = this.keyLookups.get(key);
+		if (ret == null) {
+			ret = new KeyLookup(prototype, dialect, maxParameters);
+			KeyLookup old = this.keyLookups.putIfAbsent(key, ret);
+			if (old != null) {
+				ret = old;
+			}
+		}
+		return ret;
+	}
+	
+	Field addField(String name, int type, boolean primaryKey) {
+		if (this.frozen) {
+			throw new IllegalStateException("Already initialized");
+		}
+		Field f = new Field(name, type, primaryKey, this.fieldList.size());
+		Field old = this.fieldMap.put(name, f);
+		if (old != null) {
+			//LinkedHashMapと同様に同名のフィールドは元の位置を上書きする
+			f = new Field(name, type, primaryKey, old.getIndex());
+			this.fieldMap.put(name, f);
+			this.fieldList.set(old.getIndex(), f);
+		} else {
+			this.fieldList.add(f);
+		}
+		return f;
+	}
+	
+	void freeze() {
+		List<Field> keys = new ArrayList<Field>();
+		for (Field f : this.fieldList) {
+			if (f.isPrimaryKey()) {
+				keys.add(f);
+			}
+		}
+		this.fieldList = Collections.unmodifiableList(this.fieldList);
+		this.keyList = Collections.unmodifiableList(keys);
+		this.frozen = true;
+	}
+	
+	/**
+	 * 値が設定されているフィールドに対するINSERT文を返します。
+	 * @param valued 値が設定されているフィールドのindex
+	 */
+	StatementPlan getInsertPlan(BitSet valued) {
+		return getInsertPlan(valued, 1);
+	}
+	
+	/**
+	 * 値が設定されているフィールドに対する複数行のINSERT文を返します。
+	 * @param valued 値が設定されているフィールドのindex
+	 * @param rows VALUES句の行数
+	 */
+	StatementPlan getInsertPlan(BitSet valued, int rows) {
+		if (valued.isEmpty() || rows < 1) {
+			throw new IllegalArgumentException();
+		}
+		PlanKey key = new PlanKey(PLAN_INSERT, valued, new int[] { rows });
+		StatementPlan plan = this.planCache.get(key);
+		if (plan == null) {
+			List<Field> params = new ArrayList<Field>();
+			StringBuilder buf = new StringBuilder();
+			buf.append("INSERT INTO ")
+				.append(this.tableName)
+				.append(" (");
+			
+			StringBuilder phBuf = new StringBuilder();
+			for (int i=valued.nextSetBit(0); i>=0; i=valued.nextSetBit(i+1)) {
+				Field f = this.fieldList.get(i);
+				if (phBuf.length() > 0) {
+					buf.append(",");
+					phBuf.append(",");
+				}
+				buf.append(f.getName());
+				phBuf.append("?");
+				params.add(f);
+			}
+			buf.append(") VALUES(")
+				.append(phBuf)
+				.append(")");
+			for (int i=1; i<rows; i++) {
+				buf.append(",(")
+					.append(phBuf)
+					.append(")");
+			}
+			plan = cachePlan(key, new StatementPlan(buf.toString(), params, rows));
+		}
+		return plan;
+	}
+	
+	/**
+	 * 値が設定されているフィールドを更新するUPDATE文を返します。<br>
+	 * WHERE句に使用するフィールドの値のチェックは呼び出し元で行います。
+	 * @param valued 値が設定されているフィールドのindex
+	 * @param whereList WHERE句に使用するフィールド
+	 */
+	StatementPlan getUpdatePlan(BitSet valued, List<Field> whereList) {
+		if (valued.isEmpty() || whereList == null || whereList.size() == 0) {
+			throw new IllegalArgumentException();
+		}
+		int[] whereIndexes = resolveIndexes(whereList);
+		PlanKey key = whereIndexes == null ? null : new PlanKey(PLAN_UPDATE, valued, whereIndexes);
+		StatementPlan plan = key == null ? null : this.planCache.get(key);
+		if (plan == null) {
+			List<Field> params = new ArrayList<Field>();
+			StringBuilder buf = new StringBuilder();
+			buf.append("UPDATE ")
+				.append(this.tableName)
+				.append(" SET ");
+			
+			boolean first = true;
+			for (int i=valued.nextSetBit(0); i>=0; i=valued.nextSetBit(i+1)) {
+				Field f = this.fieldList.get(i);
+				if (whereList.contains(f)) {
+					continue;
+				}
+				if (!first) {
+					buf.append(",");
+				}
+				buf.append(f.getName()).append(" = ?");
+				params.add(f);
+				first = false;
+			}
+			appendWhere(buf, whereList, params);
+			plan = new StatementPlan(buf.toString(), params);
+			if (key != null) {
+				plan = cachePlan(key, plan);
+			}
+		}
+		return plan;
+	}
+	
+	/**
+	 * DELETE文を返します。
+	 * @param whereList WHERE句に使用するフィールド
+	 */
+	StatementPlan getDeletePlan(List<Field> whereList) {
+		if (whereList == null || whereList.size() == 0) {
+			throw new IllegalArgumentException();
+		}
+		int[] whereIndexes = resolveIndexes(whereList);
+		PlanKey key = whereIndexes == null ? null : new PlanKey(PLAN_DELETE, null, whereIndexes);
+		StatementPlan plan = key == null ? null : this.planCache.get(key);
+		if (plan == null) {
+			List<Field> params = new ArrayList<Field>();
+			StringBuilder buf = new StringBuilder();
+			buf.append("DELETE FROM ")
+				.append(this.tableName);
+			appendWhere(buf, whereList, params);
+			plan = new StatementPlan(buf.toString(), params);
+			if (key != null) {
+				plan = cachePlan(key, plan);
+			}
+		}
+		return plan;
+	}
+	
+	/**
+	 * 値が設定されているフィールドに対する複数行のUPSERT文を返します。<br>
+	 * 主キーのすべてに値が設定されている必要があります。
+	 * @param valued 値が設定されているフィールドのindex
+	 * @param dialect SQLの方言
+	 * @param rows VALUES句の行数
+	 */
+	StatementPlan getUpsertPlan(BitSet valued, Dialect dialect, int rows) {
+		if (valued.isEmpty() || rows < 1 || this.keyList.size() == 0) {
+			throw new IllegalArgumentException();
+		}
+		PlanKey key = new PlanKey(PLAN_UPSERT, valued, new int[] { rows, dialect.ordinal() });
+		StatementPlan plan = this.planCache.get(key);
+		if (plan == null) {
+			List<Field> params = new ArrayList<Field>();
+			for (int i=valued.nextSetBit(0); i>=0; i=valued.nextSetBit(i+1)) {
+				params.add(this.fieldList.get(i));
+			}
+			for (Field f : this.keyList) {
+				if (!valued.get(f.getIndex())) {
+					throw new IllegalArgumentException("Primary key is not set: " + f.getName());
+				}
+			}
+			String sql = dialect.buildUpsert(this.tableName, params, this.keyList, rows);
+			plan = cachePlan(key, new StatementPlan(sql, params, rows));
+		}
+		return plan;
+	}
+	
+	private void appendWhere(StringBuilder buf, List<Field> whereList, List<Field> params) {
+		buf.append(" WHERE ");
+		boolean first = true;
+		for (Field f : whereList) {
+			if (!first) {
+				buf.append(" AND ");
+			}
+			buf.append(f.getName()).append(" = ?");
+			Field sf = this.fieldMap.get(f.getName());
+			params.add(sf != null && sf.equals(f) ? sf : f);
+			first = false;
+		}
+	}
+	
+	//このスキーマのフィールドでないものが含まれる場合はnull
+	private int[] resolveIndexes(List<Field> list) {
+		int[] ret = new int[list.size()];
+		for (int i=0; i<ret.length; i++) {
+			Field f = list.get(i);
+			Field sf = this.fieldMap.get(f.getName());
+			if (sf == null || !sf.equals(f)) {
+				return null;
+			}
+			ret[i] = sf.getIndex();
+		}
+		return ret;
+	}
+	
+	private StatementPlan cachePlan(PlanKey key, StatementPlan plan) {
+		if (this.planCache.size() >= MAX_PLANS) {
+			return plan;
+		}
+		StatementPlan ret = this.planCache.putIfAbsent(key, plan);
+		return ret == null ? plan : ret;
+	}
+	
+	/**
+	 * 登録済みのTableSchemaを返します。登録されていない場合はnullを返します。
+	 */
+	static TableSchema get(Class<?> clazz, String tableName, boolean serialKey) {
+		ConcurrentHashMap<Key, TableSchema> map = null;
+		synchronized (REGISTRY) {
+			map = REGISTRY.get(clazz);
+		}
+		return map == null ? null : map.get(new Key(tableName, serialKey));
+	}
+	
+	/**
+	 * 初期化が完了したTableSchemaを登録します。<br>
+	 * 他のスレッドがすでに登録していた場合はそのTableSchemaを返します。<br>
+	 * クラスのテーブル名の数が上限に達している場合は登録せずにそのまま返します。
+	 */
+	static TableSchema register(Class<?> clazz, TableSchema schema) {
+		ConcurrentHashMap<Key, TableSchema> map = null;
+		synchronized (REGISTRY) {
+			map = REGISTRY.get(clazz);
+			if (map == null) {
+				map = new ConcurrentHashMap<Key, TableSchema>();
+				REGISTRY.put(clazz, map);
+			}
+		}
+		if (map.size() >= MAX_TABLES_PER_CLASS) {
+			return schema;
+		}
+		TableSchema ret = map.putIfAbsent(new Key(schema.getTableName(), schema.useSerialKey()), schema);
+		return ret == null ? schema : ret;
+	}
+	
+	/**
+	 * 構築済みのSQLとパラメータに対応するフィールドの組み合わせ
+	 */
+	public static class StatementPlan {
+		
+		private String sql;
+		private Field[] params;
+		private int rows;
+		
+		StatementPlan(String sql, List<Field> params) {
+			this(sql, params, 1);
+		}
+		
+		StatementPlan(String sql, List<Field> params, int rows) {
+			this.sql = sql;
+			this.params = params.toArray(new Field[params.size()]);
+			this.rows = rows;
+		}
+		
+		/**
+		 * SQLを返します。
+		 */
+		public String getSQL() { return this.sql;}
+		
+		/**
+		 * 1行あたりのパラメータの数を返します。
+		 */
+		public int getParameterCount() { return this.params.length;}
+		
+		/**
+		 * SQLが対象とする行数を返します。<br>
+		 * 複数行のINSERT文およびUPSERT文以外では1です。
+		 */
+		public int getRows() { return this.rows;}
+		
+		/**
+		 * 指定の位置(0から開始)のパラメータに対応するフィールドを返します。
+		 */
+		public Field getParameter(int idx) { return this.params[idx];}
+	}
+	
+	private static class PlanKey {
+		
+		private int kind;
+		private long[] bits;
+		private int[] wheres;
+		
+		public PlanKey(int kind, BitSet valued, int[] wheres) {
+			this.kind = kind;
+			this.bits = valued == null ? null : toLongArray(valued);
+			this.wheres = wheres;
+		}
+		
+		private static long[] toLongArray(BitSet bs) {
+			long[] ret = new long[(bs.length() + 63) / 64];
+			for (int i=bs.nextSetBit(0); i>=0; i=bs.nextSetBit(i+1)) {
+				ret[i / 64] |= 1L << (i % 64);
+			}
+			return ret;
+		}
+		
+		public boolean equals(Object o) {
+			if (o instanceof PlanKey) {
+				PlanKey k = (PlanKey)o;
+				return k.kind == kind && Arrays.equals(k.bits, bits) && Arrays.equals(k.wheres, wheres);
+			}
+			return false;
+		}
+		
+		public int hashCode() {
+			return (kind * 31 + Arrays.hashCode(bits)) * 31 + Arrays.hashCode(wheres);
+		}
+	}
+	
+	private static class Key {
+		
+		private String tableName;
+		private boolean serialKey;
+		
+		public Key(String tableName, boolean serialKey) {
+			this.tableName = tableName;
+			this.serialKey = serialKey;
+		}
+		
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key)o;
+				return k.tableName.equals(tableName) && k.serialKey == serialKey;
+			}
+			return false;
+		}
+		
+		public int hashCode() {
+			return tableName.hashCode() * 31 + (serialKey ? 1 : 0);
+		}
+	}
+}